@@ -0,0 +1,58 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the scoring of the re-ranking candidates against the query embedding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CosineSimilarityBenchmark {
+
+    private static final int EMBEDDING_DIMENSION = 768;
+
+    @Param({"2", "10", "50"})
+    public int candidates;
+
+    private float[] queryEmbedding;
+    private float[][] candidatesEmbeddings;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        queryEmbedding = randomVector(random);
+        candidatesEmbeddings = new float[candidates][];
+        for (int i = 0; i < candidates; i++) {
+            candidatesEmbeddings[i] = randomVector(random);
+        }
+    }
+
+    @Benchmark
+    public int reRankCandidates() {
+        int bestCandidate = 0;
+        float bestSimilarity = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < candidates; i++) {
+            float similarity = JeopardyQuery.cosineSimilarity(queryEmbedding, candidatesEmbeddings[i]);
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity;
+                bestCandidate = i;
+            }
+        }
+        return bestCandidate;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[EMBEDDING_DIMENSION];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+        return vector;
+    }
+}
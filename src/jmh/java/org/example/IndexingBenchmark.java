@@ -0,0 +1,55 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the build of an index over a synthetic corpus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexingBenchmark {
+
+    @Param({"NONE", "STOP_WORDS", "STEMMING", "STOP_WORDS_STEMMING"})
+    public TextProcessingOption textProcessingOption;
+
+    @Param({"1", "4"})
+    public int indexingThreads;
+
+    private Path corpusDirectory;
+    private Path indexDirectory;
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        corpusDirectory = Files.createTempDirectory("wikipages");
+        SyntheticWikipediaCorpus.generate(corpusDirectory, 8, 250, 400, 42);
+    }
+
+    @Setup(Level.Invocation)
+    public void createIndexDirectory() throws IOException {
+        indexDirectory = Files.createTempDirectory("index");
+    }
+
+    @Benchmark
+    public void buildIndex() {
+        new WikipediaIndexer(corpusDirectory.toString(), indexDirectory.toString(), textProcessingOption, indexingThreads).buildIndex();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteIndexDirectory() throws IOException {
+        SyntheticWikipediaCorpus.deleteRecursively(indexDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        SyntheticWikipediaCorpus.deleteRecursively(corpusDirectory);
+    }
+}
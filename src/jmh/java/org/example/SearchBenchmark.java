@@ -0,0 +1,59 @@
+package org.example;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the processing, parsing and search of a clue, with the query cache disabled
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final int PAGES = 2000;
+
+    @Param({"NONE", "STOP_WORDS", "STEMMING", "STOP_WORDS_STEMMING"})
+    public TextProcessingOption textProcessingOption;
+
+    private Path corpusDirectory;
+    private Path indexDirectory;
+    private JeopardyQuery jeopardyQuery;
+    private List<JeopardyClue> clues;
+    private int nextClue;
+
+    @Setup(Level.Trial)
+    public void buildIndex() throws IOException {
+        corpusDirectory = Files.createTempDirectory("wikipages");
+        indexDirectory = Files.createTempDirectory("index");
+        SyntheticWikipediaCorpus.generate(corpusDirectory, 8, PAGES / 8, 400, 42);
+        new WikipediaIndexer(corpusDirectory.toString(), indexDirectory.toString(), textProcessingOption).buildIndex();
+
+        jeopardyQuery = new JeopardyQuery(null, indexDirectory.toString(), textProcessingOption, RetrievalMode.TEXT, 2);
+        jeopardyQuery.setUseQueryCache(false);
+        clues = SyntheticWikipediaCorpus.clues(1000, PAGES, 7);
+    }
+
+    @Benchmark
+    public JeopardyQueryResult runQuery() throws ParseException {
+        JeopardyClue clue = clues.get(nextClue);
+        nextClue = (nextClue + 1) % clues.size();
+        return jeopardyQuery.answer(clue);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteIndex() throws IOException {
+        IndexSearcherManager.closeAll();
+        SyntheticWikipediaCorpus.deleteRecursively(indexDirectory);
+        SyntheticWikipediaCorpus.deleteRecursively(corpusDirectory);
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generate a small Wikipedia corpus with the WikiPages files layout, so the benchmarks do not need the real dataset
+ */
+public final class SyntheticWikipediaCorpus {
+
+    private static final String[] WORDS = {
+            "the", "of", "and", "in", "is", "was", "for", "on", "with", "by", "as", "from", "city", "river",
+            "newspaper", "president", "island", "history", "government", "population", "published", "founded",
+            "century", "national", "capital", "company", "university", "music", "albums", "running", "played",
+            "elected", "stories", "located", "known", "largest", "resolution", "circulation", "awarded", "writers"
+    };
+
+    private SyntheticWikipediaCorpus() {
+    }
+
+    /**
+     * Write the corpus files into the directory, the same seed always gives the same corpus
+     */
+    public static void generate(Path directory, int files, int pagesPerFile, int wordsPerPage, long seed) throws IOException {
+        Random random = new Random(seed);
+        Files.createDirectories(directory);
+
+        for (int file = 0; file < files; file++) {
+            try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("enwiki-" + file + ".txt"), StandardCharsets.UTF_8)) {
+                for (int page = 0; page < pagesPerFile; page++) {
+                    writer.write("[[" + title(file * pagesPerFile + page) + "]]\n\n");
+                    writer.write("CATEGORIES: " + words(random, 4) + "\n\n");
+                    writer.write("==History==\n");
+                    writer.write(words(random, wordsPerPage / 2) + "\n\n");
+                    writer.write("==Description==\n");
+                    writer.write(words(random, wordsPerPage - wordsPerPage / 2) + "\n\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Create clues whose answers are pages of the corpus
+     */
+    public static List<JeopardyClue> clues(int count, int pages, long seed) {
+        Random random = new Random(seed);
+        List<JeopardyClue> clues = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            clues.add(new JeopardyClue(words(random, 2).toUpperCase(), words(random, 15), title(random.nextInt(pages))));
+        }
+        return clues;
+    }
+
+    /**
+     * Create the text of an article with random words
+     */
+    public static String article(Random random, int words) {
+        return words(random, words);
+    }
+
+    public static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String title(int page) {
+        return "Page " + page;
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(i % 12 == 0 ? ". " : " ");
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
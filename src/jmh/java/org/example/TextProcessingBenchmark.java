@@ -0,0 +1,38 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the analysis of an article for each text processing option
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextProcessingBenchmark {
+
+    // LEMMATIZATION needs the CoreNLP models dependency
+    @Param({"NONE", "STOP_WORDS", "STEMMING", "STOP_WORDS_STEMMING"})
+    public TextProcessingOption textProcessingOption;
+
+    @Param({"2000"})
+    public int articleWords;
+
+    private String article;
+
+    @Setup
+    public void setUp() {
+        article = SyntheticWikipediaCorpus.article(new Random(42), articleWords);
+    }
+
+    @Benchmark
+    public List<String> analyzeText() {
+        return Utils.analyzeText(article, textProcessingOption);
+    }
+}
@@ -0,0 +1,160 @@
+package org.example;
+
+import com.robrua.nlp.bert.Bert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compute the BERT embeddings used for re-ranking.
+ * The documents embeddings are computed in batches and kept in a bounded LRU cache keyed by title or passage,
+ * which can be saved to disk and loaded again by the next runs.
+ */
+public class BertEmbeddingService implements AutoCloseable {
+
+    private static final String BERT_MODEL = "com/robrua/nlp/easy-bert/bert-uncased-L-12-H-768-A-12";
+
+    private final Bert bert;
+    private final Path embeddingsCachePath;
+    private final Map<String, float[]> documentsEmbeddings;
+
+    /**
+     * @param cacheSize the maximum number of documents embeddings kept in memory
+     * @param embeddingsCachePath the file where the documents embeddings are persisted, or null to keep them only in memory
+     */
+    public BertEmbeddingService(Bert bert, int cacheSize, Path embeddingsCachePath) {
+        this.bert = bert;
+        this.embeddingsCachePath = embeddingsCachePath;
+        this.documentsEmbeddings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        if (embeddingsCachePath != null && Files.isRegularFile(embeddingsCachePath)) {
+            loadEmbeddings();
+        }
+    }
+
+    /**
+     * Load the default BERT model
+     */
+    public static BertEmbeddingService load(int cacheSize, Path embeddingsCachePath) {
+        return new BertEmbeddingService(Bert.load(BERT_MODEL), cacheSize, embeddingsCachePath);
+    }
+
+    /**
+     * Embed a query or a passage, without caching
+     */
+    public float[] embed(String text) {
+        // The same model is used by all the query and indexing threads
+        synchronized (bert) {
+            long startTime = System.nanoTime();
+            float[] embedding = bert.embedSequence(text);
+            Metrics.timer("bert.embed").recordSince(startTime);
+            return embedding;
+        }
+    }
+
+    /**
+     * Get the embeddings of the documents content, in the same order, embedding only the documents that are not cached
+     */
+    public List<float[]> embedDocuments(List<JeopardyQueryResult> documents) {
+        List<float[]> embeddings = new ArrayList<>(documents.size());
+        List<Integer> missingIndexes = new ArrayList<>();
+        List<String> missingContents = new ArrayList<>();
+
+        synchronized (documentsEmbeddings) {
+            for (JeopardyQueryResult document : documents) {
+                float[] embedding = documentsEmbeddings.get(document.passageKey());
+                if (embedding == null) {
+                    missingIndexes.add(embeddings.size());
+                    missingContents.add(document.getContent());
+                }
+                embeddings.add(embedding);
+            }
+        }
+
+        if (missingContents.isEmpty()) {
+            return embeddings;
+        }
+
+        float[][] missingEmbeddings;
+        synchronized (bert) {
+            long startTime = System.nanoTime();
+            missingEmbeddings = bert.embedSequences(missingContents.toArray(new String[0]));
+            Metrics.timer("bert.embedBatch").recordSince(startTime);
+        }
+        Metrics.add("bert.embeddedDocuments", missingEmbeddings.length);
+
+        synchronized (documentsEmbeddings) {
+            for (int i = 0; i < missingEmbeddings.length; i++) {
+                int index = missingIndexes.get(i);
+                embeddings.set(index, missingEmbeddings[i]);
+                documentsEmbeddings.put(documents.get(index).passageKey(), missingEmbeddings[i]);
+            }
+        }
+
+        return embeddings;
+    }
+
+    /**
+     * Save the cached embeddings if a cache file is used and release the model
+     */
+    @Override
+    public void close() {
+        try {
+            if (embeddingsCachePath != null) {
+                saveEmbeddings();
+            }
+        } finally {
+            bert.close();
+        }
+    }
+
+    private void loadEmbeddings() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(embeddingsCachePath)))) {
+            int count = input.readInt();
+            synchronized (documentsEmbeddings) {
+                for (int i = 0; i < count; i++) {
+                    String title = input.readUTF();
+                    float[] embedding = new float[input.readInt()];
+                    for (int j = 0; j < embedding.length; j++) {
+                        embedding[j] = input.readFloat();
+                    }
+                    documentsEmbeddings.put(title, embedding);
+                }
+            }
+            System.out.println("Loaded " + count + " documents embeddings from: " + embeddingsCachePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void saveEmbeddings() {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(embeddingsCachePath)))) {
+            synchronized (documentsEmbeddings) {
+                output.writeInt(documentsEmbeddings.size());
+                for (Map.Entry<String, float[]> entry : documentsEmbeddings.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeInt(entry.getValue().length);
+                    for (float value : entry.getValue()) {
+                        output.writeFloat(value);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Read Jeopardy clues one at a time, so a clue set does not have to fit in memory
+ */
+public interface ClueSource extends Closeable {
+
+    /**
+     * Read the next clue
+     * @return the clue, or null at the end of the source
+     */
+    JeopardyClue next() throws IOException;
+
+    /**
+     * Open the clue source based on the file extension: .jsonl or .json for one JSON object per line,
+     * .csv for a CSV file with a header, otherwise the questions file layout of 4 lines per clue
+     */
+    static ClueSource open(Path path) throws IOException {
+        String fileName = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (fileName.endsWith(".jsonl") || fileName.endsWith(".json")) {
+            return new JsonLinesClueSource(path);
+        }
+        if (fileName.endsWith(".csv")) {
+            return new CsvClueSource(path);
+        }
+        return new QuestionsFileClueSource(path);
+    }
+}
@@ -0,0 +1,114 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read the clues of a CSV file. The header gives the category, clue (or question) and answer columns,
+ * the quoted values can contain commas, escaped quotes and line breaks.
+ */
+public class CsvClueSource implements ClueSource {
+
+    private final Path path;
+    private final BufferedReader reader;
+    private final int categoryColumn;
+    private final int clueColumn;
+    private final int answerColumn;
+
+    public CsvClueSource(Path path) throws IOException {
+        this.path = path;
+        this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+
+        List<String> header = readRecord();
+        if (header == null) {
+            header = List.of();
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : header) {
+            columns.add(column.trim().toLowerCase(Locale.ROOT));
+        }
+        this.categoryColumn = columns.indexOf("category");
+        this.clueColumn = columns.contains("clue") ? columns.indexOf("clue") : columns.indexOf("question");
+        this.answerColumn = columns.indexOf("answer");
+        if (clueColumn < 0 || answerColumn < 0) {
+            reader.close();
+            throw new IOException("The header must have a clue (or question) and an answer column: " + path);
+        }
+    }
+
+    @Override
+    public JeopardyClue next() throws IOException {
+        List<String> record;
+        while ((record = readRecord()) != null) {
+            if (record.size() == 1 && record.get(0).isBlank()) {
+                continue;
+            }
+            return new JeopardyClue(getColumn(record, categoryColumn), getColumn(record, clueColumn), getColumn(record, answerColumn));
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private static String getColumn(List<String> record, int column) {
+        return column >= 0 && column < record.size() ? record.get(column).trim() : "";
+    }
+
+    /**
+     * Read the values of the next record, a quoted value can continue on the next lines
+     */
+    private List<String> readRecord() throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int position = 0;
+        while (true) {
+            if (position == line.length()) {
+                if (!quoted) {
+                    values.add(value.toString());
+                    return values;
+                }
+                line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Unterminated quoted value in: " + path);
+                }
+                value.append('\n');
+                position = 0;
+                continue;
+            }
+
+            char c = line.charAt(position++);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (position < line.length() && line.charAt(position) == '"') {
+                    value.append('"');
+                    position += 1;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.example;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Keep the fingerprint of each Wikipedia file that was indexed, stored in the commit user data of the index.
+ * A fingerprint is "size:lastModified:checksum", the checksum is only computed again when the size or the date changed.
+ * The checkpoint of the quantized embedding store written with the commit is kept too, so an interrupted build can continue it.
+ */
+public class IndexManifest {
+
+    private static final String FILE_KEY_PREFIX = "file:";
+    private static final String EMBEDDING_STORE_KEY = "embeddingStore";
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 16;
+
+    private final Map<String, String> fingerprints;
+    private String embeddingStoreCheckpoint;
+
+    private IndexManifest(Map<String, String> fingerprints, String embeddingStoreCheckpoint) {
+        this.fingerprints = fingerprints;
+        this.embeddingStoreCheckpoint = embeddingStoreCheckpoint;
+    }
+
+    /**
+     * Read the manifest of the last commit of the index, it is empty for a new index
+     */
+    public static IndexManifest read(IndexWriter indexWriter) {
+        Map<String, String> fingerprints = new HashMap<>();
+        String embeddingStoreCheckpoint = null;
+        Iterable<Map.Entry<String, String>> commitData = indexWriter.getLiveCommitData();
+        if (commitData != null) {
+            for (Map.Entry<String, String> entry : commitData) {
+                if (entry.getKey().startsWith(FILE_KEY_PREFIX)) {
+                    fingerprints.put(entry.getKey().substring(FILE_KEY_PREFIX.length()), entry.getValue());
+                } else if (entry.getKey().equals(EMBEDDING_STORE_KEY)) {
+                    embeddingStoreCheckpoint = entry.getValue();
+                }
+            }
+        }
+        return new IndexManifest(fingerprints, embeddingStoreCheckpoint);
+    }
+
+    /**
+     * Save the manifest with the next commit of the index
+     */
+    public void write(IndexWriter indexWriter) {
+        Map<String, String> commitData = new HashMap<>();
+        for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+            commitData.put(FILE_KEY_PREFIX + entry.getKey(), entry.getValue());
+        }
+        if (embeddingStoreCheckpoint != null) {
+            commitData.put(EMBEDDING_STORE_KEY, embeddingStoreCheckpoint);
+        }
+        indexWriter.setLiveCommitData(commitData.entrySet());
+    }
+
+    public Map<String, String> getFingerprints() {
+        return fingerprints;
+    }
+
+    public String getFingerprint(String fileName) {
+        return fingerprints.get(fileName);
+    }
+
+    public void putFingerprint(String fileName, String fingerprint) {
+        fingerprints.put(fileName, fingerprint);
+    }
+
+    public String getEmbeddingStoreCheckpoint() {
+        return embeddingStoreCheckpoint;
+    }
+
+    public void setEmbeddingStoreCheckpoint(String embeddingStoreCheckpoint) {
+        this.embeddingStoreCheckpoint = embeddingStoreCheckpoint;
+    }
+
+    /**
+     * Check if the file content is different from the one with the previous fingerprint
+     */
+    public static boolean isChanged(String previousFingerprint, String fingerprint) {
+        return previousFingerprint == null || !getChecksum(previousFingerprint).equals(getChecksum(fingerprint));
+    }
+
+    /**
+     * Compute the fingerprint of the file, reusing the previous checksum when the size and the date did not change
+     */
+    public static String fingerprint(File file, String previousFingerprint) throws IOException {
+        String sizeAndDate = file.length() + ":" + file.lastModified();
+        if (previousFingerprint != null && previousFingerprint.startsWith(sizeAndDate + ":")) {
+            return previousFingerprint;
+        }
+
+        CRC32C checksum = new CRC32C();
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                checksum.update(buffer, 0, read);
+            }
+        }
+        return sizeAndDate + ":" + Long.toHexString(checksum.getValue());
+    }
+
+    private static String getChecksum(String fingerprint) {
+        return fingerprint.substring(fingerprint.lastIndexOf(':') + 1);
+    }
+}
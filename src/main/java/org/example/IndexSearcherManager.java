@@ -0,0 +1,247 @@
+package org.example;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keep one shared IndexSearcher open for each text processing index.
+ * A sharded index is searched through a reader over all its shards, each shard is searched by its own thread.
+ */
+public class IndexSearcherManager implements Closeable {
+
+    private static final Map<String, IndexSearcherManager> managers = new ConcurrentHashMap<>();
+    // Shared by the searchers of all the sharded indexes, the threads are daemons so they do not keep the process alive
+    private static final ExecutorService shardSearchExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "shard-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final List<Directory> directories = new ArrayList<>();
+    private final ReferenceManager<IndexSearcher> searcherManager;
+
+    private IndexSearcherManager(String indexPath) throws IOException {
+        List<String> shardPaths = IndexShards.getShardPaths(indexPath);
+        try {
+            for (String shardPath : shardPaths) {
+                directories.add(IndexStorage.open(shardPath));
+            }
+            if (directories.size() == 1) {
+                this.searcherManager = new SearcherManager(directories.get(0), new LMDirichletSearcherFactory());
+            } else {
+                this.searcherManager = new ShardedSearcherManager(directories);
+            }
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(directories);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the manager for the index built with the specified text processing option, opening it on first use
+     */
+    public static IndexSearcherManager forOption(TextProcessingOption textProcessingOption) {
+        return forIndex(Utils.getIndexPathBasedOnTextProcessingOption(textProcessingOption));
+    }
+
+    /**
+     * Get the manager for the index at the specified path, opening it on first use
+     */
+    public static IndexSearcherManager forIndex(String indexPath) {
+        return managers.computeIfAbsent(indexPath, path -> {
+            try {
+                return new IndexSearcherManager(path);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Close all the opened managers
+     */
+    public static void closeAll() {
+        for (IndexSearcherManager manager : managers.values()) {
+            try {
+                manager.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        managers.clear();
+    }
+
+    /**
+     * Get the version of the index opened by the reader, it changes with every commit of any shard
+     */
+    public static long getIndexVersion(IndexReader indexReader) {
+        if (indexReader instanceof DirectoryReader directoryReader) {
+            return directoryReader.getVersion();
+        }
+
+        // The versions of the shards only increase, so their sum changes when any shard changes
+        long version = 0;
+        for (IndexReaderContext shardContext : indexReader.getContext().children()) {
+            version += getIndexVersion(shardContext.reader());
+        }
+        return version;
+    }
+
+    /**
+     * Create a searcher over the reader of an acquired searcher, scoring with another similarity.
+     * The reader of a sharded index keeps one slice per shard, searched concurrently.
+     */
+    public static IndexSearcher newSearcher(IndexReader reader, Similarity similarity) {
+        IndexSearcher indexSearcher = reader instanceof MultiReader ? new ShardedIndexSearcher(reader) : new IndexSearcher(reader);
+        indexSearcher.setSimilarity(similarity);
+        return indexSearcher;
+    }
+
+    /**
+     * Get a searcher over the latest index version, it must be given back with release
+     */
+    public IndexSearcher acquire() throws IOException {
+        searcherManager.maybeRefresh();
+        return searcherManager.acquire();
+    }
+
+    public void release(IndexSearcher indexSearcher) throws IOException {
+        searcherManager.release(indexSearcher);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            searcherManager.close();
+        } finally {
+            IOUtils.close(directories);
+        }
+    }
+
+    /**
+     * Configure the similarity once, every time a new reader is opened
+     */
+    private static class LMDirichletSearcherFactory extends SearcherFactory {
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+            return IndexSearcherManager.newSearcher(reader, new LMDirichletSimilarity());
+        }
+    }
+
+    /**
+     * Search a reader over the shards of an index with one slice for the segments of each shard
+     */
+    private static class ShardedIndexSearcher extends IndexSearcher {
+
+        private ShardedIndexSearcher(IndexReader shardsReader) {
+            super(shardsReader, shardSearchExecutor);
+        }
+
+        @Override
+        protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+            Map<IndexReaderContext, List<LeafReaderContext>> shardLeaves = new IdentityHashMap<>();
+            List<List<LeafReaderContext>> slices = new ArrayList<>();
+            for (LeafReaderContext leaf : leaves) {
+                shardLeaves.computeIfAbsent(leaf.parent, shard -> {
+                    List<LeafReaderContext> slice = new ArrayList<>();
+                    slices.add(slice);
+                    return slice;
+                }).add(leaf);
+            }
+            return slices.stream().map(LeafSlice::new).toArray(LeafSlice[]::new);
+        }
+    }
+
+    /**
+     * Search all the shards of an index with a single searcher, so the documents are scored with the statistics
+     * of the whole index. The searcher has one slice per shard, searched concurrently, and merges the top documents.
+     * Only the shards that changed are opened again when the searcher is refreshed.
+     */
+    private static class ShardedSearcherManager extends ReferenceManager<IndexSearcher> {
+
+        private ShardedSearcherManager(List<Directory> shardDirectories) throws IOException {
+            DirectoryReader[] shardReaders = new DirectoryReader[shardDirectories.size()];
+            try {
+                for (int i = 0; i < shardReaders.length; i++) {
+                    shardReaders[i] = DirectoryReader.open(shardDirectories.get(i));
+                }
+                current = newShardedSearcher(shardReaders);
+            } finally {
+                // The searcher holds its own reference on each shard reader
+                for (DirectoryReader shardReader : shardReaders) {
+                    if (shardReader != null) {
+                        shardReader.decRef();
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void decRef(IndexSearcher reference) throws IOException {
+            reference.getIndexReader().decRef();
+        }
+
+        @Override
+        protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+            List<IndexReaderContext> shardContexts = referenceToRefresh.getIndexReader().getContext().children();
+            DirectoryReader[] shardReaders = new DirectoryReader[shardContexts.size()];
+            List<DirectoryReader> openedReaders = new ArrayList<>();
+            try {
+                for (int i = 0; i < shardReaders.length; i++) {
+                    DirectoryReader shardReader = (DirectoryReader) shardContexts.get(i).reader();
+                    DirectoryReader newShardReader = DirectoryReader.openIfChanged(shardReader);
+                    if (newShardReader != null) {
+                        openedReaders.add(newShardReader);
+                    }
+                    shardReaders[i] = newShardReader != null ? newShardReader : shardReader;
+                }
+                return openedReaders.isEmpty() ? null : newShardedSearcher(shardReaders);
+            } finally {
+                // The new searcher holds its own reference on each shard reader
+                for (DirectoryReader openedReader : openedReaders) {
+                    openedReader.decRef();
+                }
+            }
+        }
+
+        @Override
+        protected boolean tryIncRef(IndexSearcher reference) {
+            return reference.getIndexReader().tryIncRef();
+        }
+
+        @Override
+        protected int getRefCount(IndexSearcher reference) {
+            return reference.getIndexReader().getRefCount();
+        }
+
+        /**
+         * Create a searcher over the shards, the multi reader takes a reference on each shard reader
+         */
+        private static IndexSearcher newShardedSearcher(DirectoryReader[] shardReaders) throws IOException {
+            return newSearcher(new MultiReader(shardReaders, false), new LMDirichletSimilarity());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.example;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Locate the shards of an index. A sharded index is a folder with one sub-folder per shard,
+ * each page is written to the shard chosen by the hash of its title.
+ */
+public final class IndexShards {
+
+    private static final String SHARD_FOLDER_PREFIX = "shard-";
+
+    private IndexShards() {
+    }
+
+    public static String getShardPath(String indexPath, int shard) {
+        return new File(indexPath, SHARD_FOLDER_PREFIX + shard).getPath();
+    }
+
+    /**
+     * Get the shard of the page, a page updated later is written to the same shard
+     */
+    public static int getShardOf(String title, int shards) {
+        return Math.floorMod(title.hashCode(), shards);
+    }
+
+    /**
+     * Count the shards of the index, on disk or in memory, 0 if it is not sharded
+     */
+    public static int countShards(String indexPath) {
+        int shards = 0;
+        while (IndexStorage.exists(getShardPath(indexPath, shards))) {
+            shards += 1;
+        }
+        return shards;
+    }
+
+    /**
+     * Get the paths of the shards of the index, or the index path itself if it is not sharded
+     */
+    public static List<String> getShardPaths(String indexPath) {
+        int shards = countShards(indexPath);
+        if (shards == 0) {
+            return List.of(indexPath);
+        }
+
+        List<String> shardPaths = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            shardPaths.add(getShardPath(indexPath, shard));
+        }
+        return shardPaths;
+    }
+}
@@ -0,0 +1,260 @@
+package org.example;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open the Lucene directories of the indexes with the configured storage.
+ * <p>
+ * FS lets Lucene choose the directory implementation, MMAP memory-maps the index files and can preload them
+ * in the page cache when they are opened, MEMORY keeps the indexes in RAM for the whole process: an index
+ * already on disk is loaded when it is first opened, and the built indexes can be written to disk with snapshot.
+ */
+public final class IndexStorage {
+
+    public enum Mode {
+        FS,
+        MMAP,
+        MEMORY
+    }
+
+    private static final String WRITE_LOCK_FILE = "write.lock";
+    private static final String PENDING_SEGMENTS_PREFIX = "pending_";
+
+    // The in-memory indexes by absolute path, shared by the writers and the searchers
+    private static final Map<String, ByteBuffersDirectory> memoryDirectories = new ConcurrentHashMap<>();
+    private static volatile Mode mode = Mode.FS;
+    private static volatile boolean preload = false;
+
+    private IndexStorage() {
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static void setMode(Mode mode) {
+        IndexStorage.mode = mode;
+    }
+
+    /**
+     * Load all the index files in the page cache when they are opened, only used by the MMAP storage
+     */
+    public static void setPreload(boolean preload) {
+        IndexStorage.preload = preload;
+    }
+
+    /**
+     * Open the directory of the index at the path, it is closed by the caller.
+     * Closing an in-memory directory keeps its content, it is released by closeAll.
+     */
+    public static Directory open(String indexPath) throws IOException {
+        switch (mode) {
+            case MMAP -> {
+                MMapDirectory directory = new MMapDirectory(Paths.get(indexPath));
+                directory.setPreload(preload ? MMapDirectory.ALL_FILES : MMapDirectory.NO_FILES);
+                return directory;
+            }
+            case MEMORY -> {
+                try {
+                    return new SharedDirectory(memoryDirectories.computeIfAbsent(getKey(indexPath), IndexStorage::loadInMemory));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            default -> {
+                return FSDirectory.open(Paths.get(indexPath));
+            }
+        }
+    }
+
+    /**
+     * Check if the folder of an index exists, on disk or in memory
+     */
+    public static boolean exists(String indexPath) {
+        return new File(indexPath).isDirectory() || memoryDirectories.containsKey(getKey(indexPath));
+    }
+
+    /**
+     * Write the in-memory indexes to their paths on disk, replacing the index there.
+     * The indexes must not be open for writing, nothing is done with the other storages.
+     * <p>
+     * The files are written like a commit: the new segment files are copied and synced first, then the segments file
+     * is copied under a pending name, synced and renamed, and only then the files of the previous index are deleted,
+     * so after a crash the folder still has one complete index.
+     * The files of the previous commit that the in-memory index loaded are not copied again, Lucene never changes a file.
+     */
+    public static void snapshot() throws IOException {
+        for (Map.Entry<String, ByteBuffersDirectory> memoryDirectory : memoryDirectories.entrySet()) {
+            List<String> segmentFiles = new ArrayList<>();
+            List<String> segmentsFiles = new ArrayList<>();
+            for (String file : memoryDirectory.getValue().listAll()) {
+                if (file.startsWith(IndexFileNames.SEGMENTS)) {
+                    segmentsFiles.add(file);
+                } else if (!WRITE_LOCK_FILE.equals(file)) {
+                    segmentFiles.add(file);
+                }
+            }
+            if (segmentsFiles.isEmpty()) {
+                continue;
+            }
+
+            long startTime = System.nanoTime();
+            try (Directory diskDirectory = FSDirectory.open(Paths.get(memoryDirectory.getKey()))) {
+                Set<String> committedFiles = new HashSet<>();
+                if (DirectoryReader.indexExists(diskDirectory)) {
+                    committedFiles.addAll(SegmentInfos.readLatestCommit(diskDirectory).files(true));
+                }
+                Set<String> diskFiles = new HashSet<>(Arrays.asList(diskDirectory.listAll()));
+
+                diskDirectory.sync(copyFiles(memoryDirectory.getValue(), diskDirectory, segmentFiles, diskFiles, committedFiles));
+                for (String segmentsFile : segmentsFiles) {
+                    publishSegmentsFile(memoryDirectory.getValue(), diskDirectory, segmentsFile, diskFiles, committedFiles);
+                }
+
+                diskFiles.removeAll(segmentFiles);
+                diskFiles.removeAll(segmentsFiles);
+                diskFiles.remove(WRITE_LOCK_FILE);
+                for (String file : diskFiles) {
+                    diskDirectory.deleteFile(file);
+                }
+                diskDirectory.syncMetaData();
+            }
+            System.out.println("Wrote the in-memory index to: " + memoryDirectory.getKey() + " in "
+                    + String.format("%.2f", (System.nanoTime() - startTime) / 1_000_000_000.0) + " s");
+        }
+    }
+
+    /**
+     * Copy the files to the disk and return the copied ones. A file of the last commit on disk is kept,
+     * it must be the same as the one in memory, another file with the same name is a leftover and is replaced.
+     */
+    private static List<String> copyFiles(Directory memoryDirectory, Directory diskDirectory, List<String> files,
+                                          Set<String> diskFiles, Set<String> committedFiles) throws IOException {
+        List<String> copiedFiles = new ArrayList<>();
+        for (String file : files) {
+            if (committedFiles.contains(file)) {
+                if (!isSameFile(memoryDirectory, diskDirectory, file)) {
+                    throw new IOException("The index on disk changed since it was loaded in memory, " + file + " is different");
+                }
+                continue;
+            }
+            if (diskFiles.contains(file)) {
+                diskDirectory.deleteFile(file);
+            }
+            diskDirectory.copyFrom(memoryDirectory, file, file, IOContext.DEFAULT);
+            copiedFiles.add(file);
+        }
+        return copiedFiles;
+    }
+
+    /**
+     * Copy the segments file under a pending name and rename it once it is synced, like a commit of IndexWriter,
+     * so a crash never leaves a truncated segments file that hides the previous commit
+     */
+    private static void publishSegmentsFile(Directory memoryDirectory, Directory diskDirectory, String segmentsFile,
+                                            Set<String> diskFiles, Set<String> committedFiles) throws IOException {
+        if (committedFiles.contains(segmentsFile)) {
+            if (!isSameFile(memoryDirectory, diskDirectory, segmentsFile)) {
+                throw new IOException("The index on disk changed since it was loaded in memory, " + segmentsFile + " is different");
+            }
+            return;
+        }
+
+        String pendingFile = PENDING_SEGMENTS_PREFIX + segmentsFile;
+        if (diskFiles.remove(pendingFile)) {
+            diskDirectory.deleteFile(pendingFile);
+        }
+        diskDirectory.copyFrom(memoryDirectory, segmentsFile, pendingFile, IOContext.DEFAULT);
+        diskDirectory.sync(List.of(pendingFile));
+        // A segments file with the same name is a leftover, it is not part of the last commit
+        if (diskFiles.remove(segmentsFile)) {
+            diskDirectory.deleteFile(segmentsFile);
+        }
+        diskDirectory.rename(pendingFile, segmentsFile);
+        diskDirectory.syncMetaData();
+    }
+
+    // Compare the lengths and the checksums in the footers of the index files
+    private static boolean isSameFile(Directory memoryDirectory, Directory diskDirectory, String file) throws IOException {
+        try (IndexInput memoryInput = memoryDirectory.openInput(file, IOContext.READONCE);
+             IndexInput diskInput = diskDirectory.openInput(file, IOContext.READONCE)) {
+            return memoryInput.length() == diskInput.length()
+                    && CodecUtil.retrieveChecksum(memoryInput) == CodecUtil.retrieveChecksum(diskInput);
+        }
+    }
+
+    /**
+     * Release the in-memory indexes
+     */
+    public static void closeAll() {
+        IOUtils.closeWhileHandlingException(memoryDirectories.values());
+        memoryDirectories.clear();
+    }
+
+    private static String getKey(String indexPath) {
+        return Paths.get(indexPath).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Create an in-memory directory with the files of the index on disk, if there is one
+     */
+    private static ByteBuffersDirectory loadInMemory(String indexPath) {
+        ByteBuffersDirectory memoryDirectory = new ByteBuffersDirectory();
+        Path diskPath = Paths.get(indexPath);
+        if (!diskPath.toFile().isDirectory()) {
+            return memoryDirectory;
+        }
+
+        try (Directory diskDirectory = FSDirectory.open(diskPath)) {
+            if (DirectoryReader.indexExists(diskDirectory)) {
+                for (String file : diskDirectory.listAll()) {
+                    if (!WRITE_LOCK_FILE.equals(file)) {
+                        memoryDirectory.copyFrom(diskDirectory, file, file, IOContext.DEFAULT);
+                    }
+                }
+                System.out.println("Loaded the index in memory from: " + indexPath);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return memoryDirectory;
+    }
+
+    /**
+     * An in-memory directory opened by a writer or a searcher, closing it keeps the shared content
+     */
+    private static class SharedDirectory extends FilterDirectory {
+
+        private SharedDirectory(Directory in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.example;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * The IndexWriter settings used to build the indexes, trading the build time against the number of segments searched
+ */
+public class IndexWriterTuning {
+
+    public enum MergePolicyType {
+        TIERED,
+        LOG_BYTE_SIZE,
+        LOG_DOC
+    }
+
+    // Each index has its own buffer, they are all filled at the same time
+    private static final double BULK_LOAD_RAM_BUFFER_SIZE_MB = 512;
+    private static final double BULK_LOAD_SEGMENTS_PER_TIER = 20;
+    private static final double BULK_LOAD_MAX_MERGED_SEGMENT_MB = 16 * 1024;
+    private static final int BULK_LOAD_COMMIT_INTERVAL_FILES = 10;
+
+    private double ramBufferSizeMb = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private int mergeThreads = 0;
+    private MergePolicyType mergePolicyType = MergePolicyType.TIERED;
+    private boolean useCompoundFile = true;
+    private int forceMergeSegments = 0;
+    private int commitIntervalFiles = 0;
+    private boolean bulkLoad = false;
+
+    /**
+     * The Lucene defaults: small RAM buffer, compound files and a single commit at the end
+     */
+    public static IndexWriterTuning defaults() {
+        return new IndexWriterTuning();
+    }
+
+    /**
+     * Settings for building a large index: large RAM buffers, fewer and larger merges, no compound files
+     * and a commit every few files, so an interrupted build is resumed from the last commit
+     */
+    public static IndexWriterTuning bulkLoad() {
+        IndexWriterTuning tuning = new IndexWriterTuning();
+        tuning.bulkLoad = true;
+        tuning.ramBufferSizeMb = BULK_LOAD_RAM_BUFFER_SIZE_MB;
+        tuning.mergeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        tuning.useCompoundFile = false;
+        tuning.commitIntervalFiles = BULK_LOAD_COMMIT_INTERVAL_FILES;
+        return tuning;
+    }
+
+    /**
+     * Apply the settings to the configuration of a new IndexWriter
+     */
+    public IndexWriterConfig apply(IndexWriterConfig indexWriterConfig) {
+        indexWriterConfig.setRAMBufferSizeMB(ramBufferSizeMb);
+        indexWriterConfig.setUseCompoundFile(useCompoundFile);
+
+        MergePolicy mergePolicy = createMergePolicy();
+        if (!useCompoundFile) {
+            mergePolicy.setNoCFSRatio(0.0);
+        }
+        indexWriterConfig.setMergePolicy(mergePolicy);
+
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+        if (mergeThreads > 0) {
+            // Allow a few merges to wait for a thread before the indexing threads are stalled
+            mergeScheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+        }
+        indexWriterConfig.setMergeScheduler(mergeScheduler);
+        return indexWriterConfig;
+    }
+
+    private MergePolicy createMergePolicy() {
+        switch (mergePolicyType) {
+            case LOG_BYTE_SIZE -> {
+                return new LogByteSizeMergePolicy();
+            }
+            case LOG_DOC -> {
+                return new LogDocMergePolicy();
+            }
+            default -> {
+                TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+                if (bulkLoad) {
+                    tieredMergePolicy.setSegmentsPerTier(BULK_LOAD_SEGMENTS_PER_TIER);
+                    tieredMergePolicy.setMaxMergedSegmentMB(BULK_LOAD_MAX_MERGED_SEGMENT_MB);
+                }
+                return tieredMergePolicy;
+            }
+        }
+    }
+
+    public void setRamBufferSizeMb(double ramBufferSizeMb) {
+        if (ramBufferSizeMb <= 0) {
+            throw new IllegalArgumentException("The RAM buffer size must be positive");
+        }
+        this.ramBufferSizeMb = ramBufferSizeMb;
+    }
+
+    /**
+     * @param mergeThreads the maximum number of merge threads, 0 lets Lucene choose based on the disk type
+     */
+    public void setMergeThreads(int mergeThreads) {
+        if (mergeThreads < 0) {
+            throw new IllegalArgumentException("The number of merge threads can not be negative");
+        }
+        this.mergeThreads = mergeThreads;
+    }
+
+    public void setMergePolicyType(MergePolicyType mergePolicyType) {
+        this.mergePolicyType = mergePolicyType;
+    }
+
+    public void setUseCompoundFile(boolean useCompoundFile) {
+        this.useCompoundFile = useCompoundFile;
+    }
+
+    public int getForceMergeSegments() {
+        return forceMergeSegments;
+    }
+
+    /**
+     * @param forceMergeSegments the maximum number of segments left after the build, 0 to not force merge
+     */
+    public void setForceMergeSegments(int forceMergeSegments) {
+        if (forceMergeSegments < 0) {
+            throw new IllegalArgumentException("The number of segments can not be negative");
+        }
+        this.forceMergeSegments = forceMergeSegments;
+    }
+
+    public int getCommitIntervalFiles() {
+        return commitIntervalFiles;
+    }
+
+    /**
+     * @param commitIntervalFiles the number of parsed files between two commits, 0 to commit only at the end
+     */
+    public void setCommitIntervalFiles(int commitIntervalFiles) {
+        if (commitIntervalFiles < 0) {
+            throw new IllegalArgumentException("The commit interval can not be negative");
+        }
+        this.commitIntervalFiles = commitIntervalFiles;
+    }
+
+    @Override
+    public String toString() {
+        return "RAM buffer: " + ramBufferSizeMb + " MB, merge threads: " + (mergeThreads == 0 ? "auto" : mergeThreads)
+                + ", merge policy: " + mergePolicyType + ", compound files: " + useCompoundFile
+                + ", force merge segments: " + forceMergeSegments + ", commit interval files: " + commitIntervalFiles;
+    }
+}
@@ -0,0 +1,10 @@
+package org.example;
+
+/**
+ * Hold a Jeopardy question
+ * @param category the category of the question
+ * @param clue the clue of the question
+ * @param answer the expected answer
+ */
+public record JeopardyClue(String category, String clue, String answer) {
+}
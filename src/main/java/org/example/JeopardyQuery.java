@@ -1,146 +1,632 @@
 package org.example;
 
-import com.robrua.nlp.bert.Bert;
 import edu.stanford.nlp.util.Triple;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.similarities.LMDirichletSimilarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.VectorUtil;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Get answers for all the Jeopardy questions and measure the performance
  */
 public class JeopardyQuery {
 
+    private static final int BERT_EMBEDDINGS_CACHE_SIZE = 10_000;
+    private static final int DEFAULT_RERANK_DEPTH = 2;
+    // Minimum number of results of each search that are fused in the hybrid mode
+    private static final int HYBRID_SEARCH_DEPTH = 50;
+    private static final int RECIPROCAL_RANK_FUSION_K = 60;
+    private static final Set<String> TITLE_FIELD = Set.of(WikipediaIndexer.TITLE_FIELD);
+    private static final Set<String> TITLE_AND_PASSAGE_NUMBER_FIELDS = Set.of(WikipediaIndexer.TITLE_FIELD, WikipediaIndexer.PASSAGE_NUMBER_FIELD);
+    // Number of passages retrieved for each page result, so enough distinct pages are found
+    private static final int PASSAGES_PER_RESULT = 10;
+    private static final int MIN_PASSAGES_SEARCH_DEPTH = 50;
+    private static final Set<String> PASSAGE_FIELDS = Set.of(WikipediaIndexer.PASSAGE_FIELD, "content");
+    private static final int QUERY_CACHE_SIZE = 10_000;
+    private static final Duration QUERY_CACHE_TIME_TO_LIVE = Duration.ofHours(1);
+    // Number of clues whose queries are created together
+    private static final int QUERY_BATCH_SIZE = 64;
+    private static final int PENDING_CLUES_PER_THREAD = 16;
+    private static final int PROGRESS_INTERVAL = 10_000;
+
+    // Shared by all the runs of the process, the processed queries do not depend on the index generation
+    private static final QueryCache<ProcessedQueryKey, ProcessedQuery> processedQueriesCache =
+            new QueryCache<>(QUERY_CACHE_SIZE, QUERY_CACHE_TIME_TO_LIVE);
+    private static final QueryCache<SearchResultsKey, SearchResults> searchResultsCache =
+            new QueryCache<>(QUERY_CACHE_SIZE, QUERY_CACHE_TIME_TO_LIVE);
+
     private final String jeopardyQuestionsFilePath;
     private final String indexPath;
     private final TextProcessingOption textProcessingOption;
-    private final Map<String, Triple<Integer, Integer, Double>> categoriesAnswers = new HashMap<>();
+    private final RetrievalMode retrievalMode;
+    private final int rerankDepth;
+    private final Map<String, Triple<Integer, Integer, Double>> categoriesAnswers = new ConcurrentHashMap<>();
+    private final Analyzer analyzer;
+    private final LongAdder rerankNanos = new LongAdder();
+    private final LongAdder rerankedQueries = new LongAdder();
+    private boolean useQueryCache = true;
+    private boolean searchPassages = false;
+    private QuantizedEmbeddingStore embeddingStore;
 
     public JeopardyQuery(String jeopardyQuestionsFilePath, TextProcessingOption textProcessingOption) {
-        this.jeopardyQuestionsFilePath = jeopardyQuestionsFilePath;
-        this.textProcessingOption = textProcessingOption;
-        this.indexPath = Utils.getIndexPathBasedOnTextProcessingOption(textProcessingOption);
+        this(jeopardyQuestionsFilePath, textProcessingOption, RetrievalMode.TEXT);
     }
 
-    // Parse the Jeopardy questions and run the queries
-    public void startQuery(boolean useBert) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(jeopardyQuestionsFilePath))) {
+    public JeopardyQuery(String jeopardyQuestionsFilePath, TextProcessingOption textProcessingOption, RetrievalMode retrievalMode) {
+        this(jeopardyQuestionsFilePath, textProcessingOption, retrievalMode, DEFAULT_RERANK_DEPTH);
+    }
 
-            String category = "";
-            String clue = "";
-            String answer = "";
+    /**
+     * @param rerankDepth the number of results that are retrieved and re-ranked with BERT
+     */
+    public JeopardyQuery(String jeopardyQuestionsFilePath, TextProcessingOption textProcessingOption, RetrievalMode retrievalMode, int rerankDepth) {
+        this(jeopardyQuestionsFilePath, Utils.getIndexPathBasedOnTextProcessingOption(textProcessingOption), textProcessingOption, retrievalMode, rerankDepth);
+    }
 
-            int lineNumber = 0;
-            String line;
+    /**
+     * @param indexPath the path of the index, built with the text processing option
+     */
+    public JeopardyQuery(String jeopardyQuestionsFilePath, String indexPath, TextProcessingOption textProcessingOption, RetrievalMode retrievalMode, int rerankDepth) {
+        if (rerankDepth < 1) {
+            throw new IllegalArgumentException("The re-rank depth must be positive");
+        }
+        this.jeopardyQuestionsFilePath = jeopardyQuestionsFilePath;
+        this.textProcessingOption = textProcessingOption;
+        this.retrievalMode = retrievalMode;
+        this.rerankDepth = rerankDepth;
+        this.indexPath = indexPath;
+        this.analyzer = Utils.getAnalyzer(textProcessingOption);
+    }
 
-            int correctAnswers = 0;
+    /**
+     * Reuse the processed queries and the search results of the same clues, enabled by default
+     */
+    public void setUseQueryCache(boolean useQueryCache) {
+        this.useQueryCache = useQueryCache;
+    }
 
-            Bert bert = null;
-            if (useBert) {
-                bert = Bert.load("com/robrua/nlp/easy-bert/bert-uncased-L-12-H-768-A-12");
-            }
+    /**
+     * Search an index of passages, built with WikipediaIndexer.setIndexPassages.
+     * The pages are ranked by their best passage, which is the one used for re-ranking.
+     */
+    public void setSearchPassages(boolean searchPassages) {
+        this.searchPassages = searchPassages;
+    }
 
-            // Parse the questions
-            while ((line = reader.readLine()) != null) {
-                switch (lineNumber % 4) {
-                    case 0 -> category = line.trim();
-                    case 1 -> clue = line.trim();
-                    case 2 -> answer = line.trim();
-                    case 3 -> {
-                        // Create the query
-                        String query = Utils.applyTextProcessing(category + " " + clue, textProcessingOption);
-                        JeopardyQueryResult result = runQuery(query, bert);
+    /**
+     * Re-rank with the quantized embeddings of the store, only the documents that are not stored are embedded with BERT.
+     * The store must be built with the index, see WikipediaIndexer.setEmbeddingStorePath.
+     */
+    public void setEmbeddingStore(QuantizedEmbeddingStore embeddingStore) {
+        this.embeddingStore = embeddingStore;
+    }
 
-                        boolean isFirstAnswerCorrect = false;
+    // Answer a single clue without re-ranking
+    JeopardyQueryResult answer(JeopardyClue clue) throws ParseException {
+        return rankAnswers(clue, null, false).get(0);
+    }
 
-                        if (result.getTitle().equalsIgnoreCase(answer)) {
-                            isFirstAnswerCorrect = true;
-                            correctAnswers += 1;
-                        }
+    // Rank the results of a single clue, the result chosen by the re-ranking comes first
+    List<JeopardyQueryResult> rankAnswers(JeopardyClue clue, BertEmbeddingService embeddingService, boolean useBert) throws ParseException {
+        String clueText = clue.category() + " " + clue.clue();
+        return runQuery(createQueries(List.of(clueText)).get(0), clueText, embeddingService, useBert);
+    }
 
-                        // Update the categories
-                        addToCategoriesAnswers(category, isFirstAnswerCorrect);
+    // Read the Jeopardy questions and run the queries
+    public void startQuery(boolean useBert) {
+        startQuery(useBert, Runtime.getRuntime().availableProcessors());
+    }
 
-                        System.out.println();
-                        System.out.println("Category: " + category);
-                        System.out.println("Question: " + clue);
-                        System.out.println("Expected answer: " + answer);
-                        System.out.println("Actual answer: " + result.getTitle());
-                        System.out.println("Is correct: " + isFirstAnswerCorrect);
+    // Read the Jeopardy questions lazily and run the queries in parallel, the results are printed in the questions order.
+    // The clues are processed in batches and at most a few batches per thread are pending, so the memory does not grow with the number of clues
+    public void startQuery(boolean useBert, int queryThreads) {
+        ExecutorService queryExecutor = Executors.newFixedThreadPool(queryThreads);
+        BertEmbeddingService embeddingService = null;
+        try (ClueSource clueSource = ClueSource.open(Path.of(jeopardyQuestionsFilePath))) {
+            if (useBert || retrievalMode != RetrievalMode.TEXT) {
+                embeddingService = BertEmbeddingService.load(BERT_EMBEDDINGS_CACHE_SIZE, Path.of(Utils.getBertEmbeddingsCachePath()));
+            }
+
+            int maxPendingClues = Math.max(QUERY_BATCH_SIZE, queryThreads * PENDING_CLUES_PER_THREAD);
+            Deque<PendingClue> pendingClues = new ArrayDeque<>();
+            AnswerStatistics statistics = new AnswerStatistics();
+            List<JeopardyClue> batch = new ArrayList<>(QUERY_BATCH_SIZE);
+
+            JeopardyClue clue;
+            do {
+                clue = clueSource.next();
+                if (clue != null) {
+                    if (clue.clue().isBlank()) {
+                        statistics.skippedClues += 1;
+                    } else {
+                        batch.add(clue);
                     }
                 }
-                lineNumber += 1;
+                if (batch.size() == QUERY_BATCH_SIZE || (clue == null && !batch.isEmpty())) {
+                    submitQueries(batch, queryExecutor, embeddingService, useBert, pendingClues);
+                    batch.clear();
+
+                    // Print the answered clues and wait for the oldest ones while too many are pending
+                    while (!pendingClues.isEmpty()
+                            && (pendingClues.size() > maxPendingClues || pendingClues.peekFirst().results().isDone())) {
+                        printResult(pendingClues.removeFirst(), statistics);
+                    }
+                }
+            } while (clue != null);
+
+            while (!pendingClues.isEmpty()) {
+                printResult(pendingClues.removeFirst(), statistics);
             }
 
-            double precisionAt1 = correctAnswers / 100.0;
             System.out.println("\nFor index: " + indexPath);
-            System.out.println("Correct answers: " + correctAnswers + " /100");
-            System.out.println("P@1: " + precisionAt1);
+            System.out.println("Correct answers: " + statistics.correctAnswers + " /" + statistics.answeredClues);
+            System.out.println("P@1: " + statistics.getPrecisionAt1());
+            System.out.println("MRR@" + rerankDepth + ": " + statistics.getMeanReciprocalRank());
+            if (statistics.skippedClues > 0) {
+                System.out.println("Skipped clues without text: " + statistics.skippedClues);
+            }
+            if (useBert) {
+                long reranked = rerankedQueries.sum();
+                double averageMillis = reranked == 0 ? 0.0 : rerankNanos.sum() / 1_000_000.0 / reranked;
+                System.out.println("Re-ranked top " + rerankDepth + " for " + reranked + " questions, "
+                        + String.format("%.2f", averageMillis) + " ms per re-ranked question");
+            }
+            System.out.println("Processed queries cache: " + processedQueriesCache.getStatistics());
+            System.out.println("Search results cache: " + searchResultsCache.getStatistics());
             System.out.println();
 
             // Print categories information
             categoriesAnswers.entrySet().stream()
-                    .sorted(Comparator.comparingDouble(entry -> {
+                    .sorted(Comparator.<Map.Entry<String, Triple<Integer, Integer, Double>>>comparingDouble(entry -> {
                         Triple<Integer, Integer, Double> triple = entry.getValue();
                         double total = triple.first + triple.second;
                         double precision = (triple.first * 100.0) / total;
                         triple.third = precision;
                         return -precision;
-                    })).forEach(entry -> {
+                    }).thenComparing(Map.Entry::getKey)).forEach(entry -> {
                         String key = entry.getKey();
                         Triple<Integer, Integer, Double> triple = entry.getValue();
                         System.out.println(key + ": Correct: " + triple.first + ", Incorrect: " + triple.second + ", Precision: " + triple.third);
                     });
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            queryExecutor.shutdownNow();
+            if (embeddingService != null) {
+                embeddingService.close();
+            }
+        }
+    }
+
+    // Evaluate each search configuration over all the clues with the text query, on one searcher over the index opened once.
+    // The clues are processed once and each configuration searches them in parallel, the configurations run one after the other
+    // so their latencies are measured with the same load. Prints a table of the accuracy and the latency of each configuration
+    public void evaluateConfigurations(List<SearchConfiguration> configurations, int queryThreads) {
+        ExecutorService queryExecutor = Executors.newFixedThreadPool(queryThreads);
+        IndexSearcherManager indexSearcherManager = IndexSearcherManager.forIndex(indexPath);
+        try {
+            List<JeopardyClue> clues = new ArrayList<>();
+            List<String> cluesTexts = new ArrayList<>();
+            for (JeopardyClue clue : readClues(Integer.MAX_VALUE)) {
+                if (!clue.clue().isBlank()) {
+                    clues.add(clue);
+                    cluesTexts.add(clue.category() + " " + clue.clue());
+                }
+            }
+            List<String> processedTexts = Utils.applyTextProcessing(cluesTexts, textProcessingOption);
+            Analyzer indexAnalyzer = Utils.getIndexAnalyzer(textProcessingOption);
+
+            List<ConfigurationEvaluation> evaluations = new ArrayList<>();
+            IndexSearcher indexSearcher = indexSearcherManager.acquire();
+            try {
+                Collection<String> indexedFields = FieldInfos.getIndexedFields(indexSearcher.getIndexReader());
+                for (SearchConfiguration configuration : configurations) {
+                    if (!indexedFields.containsAll(configuration.fieldBoosts().keySet())) {
+                        System.out.println("Skipped " + configuration.name() + ", the index does not have the fields: "
+                                + configuration.fieldBoosts().keySet());
+                        continue;
+                    }
+                    ConfigurationEvaluation evaluation = evaluateConfiguration(configuration, indexSearcher, clues, cluesTexts,
+                            processedTexts, indexAnalyzer, queryExecutor);
+                    System.out.println("Evaluated " + configuration.name() + ", P@1: " + evaluation.statistics().getPrecisionAt1());
+                    evaluations.add(evaluation);
+                }
+            } finally {
+                indexSearcherManager.release(indexSearcher);
+            }
+
+            printEvaluations(evaluations, clues.size());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    // Search all the clues with the configuration, the searcher shares the reader and the shard slices of the open index
+    private ConfigurationEvaluation evaluateConfiguration(SearchConfiguration configuration, IndexSearcher sharedSearcher,
+                                                          List<JeopardyClue> clues, List<String> cluesTexts, List<String> processedTexts,
+                                                          Analyzer indexAnalyzer, ExecutorService queryExecutor) throws Exception {
+        IndexSearcher indexSearcher = IndexSearcherManager.newSearcher(sharedSearcher.getIndexReader(), configuration.similarity());
+        int searchDepth = searchPassages ? Math.max(MIN_PASSAGES_SEARCH_DEPTH, rerankDepth * PASSAGES_PER_RESULT) : rerankDepth;
+        StageTimer latency = new StageTimer(configuration.name());
+        int[] answerRanks = new int[clues.size()];
+
+        long startTime = System.nanoTime();
+        List<Future<Void>> batches = new ArrayList<>();
+        for (int start = 0; start < clues.size(); start += QUERY_BATCH_SIZE) {
+            int batchStart = start;
+            int batchEnd = Math.min(clues.size(), start + QUERY_BATCH_SIZE);
+            batches.add(queryExecutor.submit(() -> {
+                StoredFields storedFields = indexSearcher.storedFields();
+                for (int i = batchStart; i < batchEnd; i++) {
+                    long queryStart = System.nanoTime();
+                    Query query = createFieldsQuery(cluesTexts.get(i), processedTexts.get(i), configuration.fieldBoosts(), indexAnalyzer);
+                    ScoreDoc[] scoreDocs = indexSearcher.search(query, searchDepth).scoreDocs;
+
+                    // The passages of the same page count once, as in the aggregated passages results
+                    List<String> titles = new ArrayList<>(rerankDepth);
+                    for (int j = 0; j < scoreDocs.length && titles.size() < rerankDepth; j++) {
+                        String title = storedFields.document(scoreDocs[j].doc, TITLE_FIELD).get(WikipediaIndexer.TITLE_FIELD);
+                        if (!titles.contains(title)) {
+                            titles.add(title);
+                        }
+                    }
+                    latency.recordSince(queryStart);
+                    answerRanks[i] = findAnswerRank(titles, clues.get(i).answer());
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> batch : batches) {
+            batch.get();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        AnswerStatistics statistics = new AnswerStatistics();
+        for (int answerRank : answerRanks) {
+            statistics.add(answerRank);
+        }
+        return new ConfigurationEvaluation(configuration, statistics, latency, elapsedNanos);
+    }
+
+    // Match the clue in each field with its boost, the content is indexed after the text processing and the other fields from the raw text
+    private static Query createFieldsQuery(String clueText, String processedText, Map<String, Float> fieldBoosts,
+                                           Analyzer indexAnalyzer) throws ParseException {
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        for (Map.Entry<String, Float> fieldBoost : fieldBoosts.entrySet()) {
+            String text = "content".equals(fieldBoost.getKey()) ? processedText : clueText;
+            Query fieldQuery = new QueryParser(fieldBoost.getKey(), indexAnalyzer).parse(QueryParser.escape(text));
+            query.add(new BoostQuery(fieldQuery, fieldBoost.getValue()), BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+
+    // Find the rank of the expected answer in the titles, 0 when it was not retrieved
+    private static int findAnswerRank(List<String> titles, String answer) {
+        for (int i = 0; i < titles.size(); i++) {
+            if (titles.get(i).equalsIgnoreCase(answer)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Print the accuracy and the latency of the configurations, the best P@1 first
+    private void printEvaluations(List<ConfigurationEvaluation> evaluations, int clues) {
+        String rowFormat = "%-60s %8s %8s %10s %10s %10s %10s%n";
+        System.out.println("\nFor index: " + indexPath + ", " + clues + " clues, " + evaluations.size() + " configurations");
+        System.out.printf(rowFormat, "Configuration", "P@1", "MRR@" + rerankDepth, "Mean ms", "P50 ms", "P99 ms", "Clues/s");
+        evaluations.stream()
+                .sorted(Comparator.<ConfigurationEvaluation>comparingDouble(evaluation -> -evaluation.statistics().getPrecisionAt1())
+                        .thenComparingDouble(evaluation -> -evaluation.statistics().getMeanReciprocalRank()))
+                .forEach(evaluation -> System.out.printf(rowFormat,
+                        evaluation.configuration().name(),
+                        String.format("%.4f", evaluation.statistics().getPrecisionAt1()),
+                        String.format("%.4f", evaluation.statistics().getMeanReciprocalRank()),
+                        String.format("%.3f", evaluation.latency().getMeanMicros() / 1000.0),
+                        String.format("%.3f", evaluation.latency().getP50Micros() / 1000.0),
+                        String.format("%.3f", evaluation.latency().getP99Micros() / 1000.0),
+                        String.format("%.1f", clues / Math.max(evaluation.elapsedNanos() / 1_000_000_000.0, 1e-9))));
+        System.out.println();
+    }
+
+    // Read at most the specified number of clues from the start of the Jeopardy questions
+    List<JeopardyClue> readClues(int maxClues) throws IOException {
+        List<JeopardyClue> clues = new ArrayList<>();
+        try (ClueSource clueSource = ClueSource.open(Path.of(jeopardyQuestionsFilePath))) {
+            JeopardyClue clue;
+            while (clues.size() < maxClues && (clue = clueSource.next()) != null) {
+                clues.add(clue);
+            }
+        }
+        return clues;
+    }
+
+    // Create the queries of the batch together, so the lemmatization is done in one pass, and submit them
+    private void submitQueries(List<JeopardyClue> clues, ExecutorService queryExecutor, BertEmbeddingService embeddingService,
+                               boolean useBert, Deque<PendingClue> pendingClues) throws ParseException {
+        List<String> queriesTexts = new ArrayList<>(clues.size());
+        for (JeopardyClue clue : clues) {
+            queriesTexts.add(clue.category() + " " + clue.clue());
+        }
+        List<ProcessedQuery> queries = createQueries(queriesTexts);
+
+        for (int i = 0; i < clues.size(); i++) {
+            ProcessedQuery query = queries.get(i);
+            String clueText = queriesTexts.get(i);
+            pendingClues.addLast(new PendingClue(clues.get(i),
+                    queryExecutor.submit(() -> runQuery(query, clueText, embeddingService, useBert))));
+        }
+    }
+
+    // Print the answer of the clue and add it to the statistics
+    private void printResult(PendingClue pendingClue, AnswerStatistics statistics) throws Exception {
+        JeopardyClue clue = pendingClue.clue();
+        List<JeopardyQueryResult> results = pendingClue.results().get();
+        String actualAnswer = results.isEmpty() ? "" : results.get(0).getTitle();
+
+        int answerRank = 0;
+        for (int i = 0; i < results.size() && answerRank == 0; i++) {
+            if (results.get(i).getTitle().equalsIgnoreCase(clue.answer())) {
+                answerRank = i + 1;
+            }
+        }
+        statistics.add(answerRank);
+        addToCategoriesAnswers(clue.category(), answerRank == 1);
+
+        System.out.println();
+        System.out.println("Category: " + clue.category());
+        System.out.println("Question: " + clue.clue());
+        System.out.println("Expected answer: " + clue.answer());
+        System.out.println("Actual answer: " + actualAnswer);
+        System.out.println("Is correct: " + (answerRank == 1));
+
+        if (statistics.answeredClues % PROGRESS_INTERVAL == 0) {
+            System.out.println("\nAnswered " + statistics.answeredClues + " clues, P@1: " + statistics.getPrecisionAt1()
+                    + ", MRR@" + rerankDepth + ": " + statistics.getMeanReciprocalRank());
+        }
+    }
+
+    // Process the queries texts and parse them, reusing the cached queries
+    private List<ProcessedQuery> createQueries(List<String> queriesTexts) throws ParseException {
+        List<ProcessedQuery> queries = new ArrayList<>(Collections.nCopies(queriesTexts.size(), null));
+        List<Integer> missingIndexes = new ArrayList<>();
+        List<String> missingTexts = new ArrayList<>();
+
+        for (int i = 0; i < queriesTexts.size(); i++) {
+            ProcessedQueryKey key = new ProcessedQueryKey(textProcessingOption, normalizeClue(queriesTexts.get(i), textProcessingOption));
+            ProcessedQuery query = useQueryCache ? processedQueriesCache.get(key, 0) : null;
+            if (query == null) {
+                missingIndexes.add(i);
+                missingTexts.add(queriesTexts.get(i));
+            }
+            queries.set(i, query);
         }
+
+        // The texts are processed in one batch, the time of the whole batch is recorded
+        long processingStart = System.nanoTime();
+        List<String> processedTexts = Utils.applyTextProcessing(missingTexts, textProcessingOption);
+        if (!missingTexts.isEmpty()) {
+            Metrics.timer("query.textProcessing").recordSince(processingStart);
+        }
+        for (int i = 0; i < processedTexts.size(); i++) {
+            int index = missingIndexes.get(i);
+            long parseStart = System.nanoTime();
+            ProcessedQuery query = new ProcessedQuery(processedTexts.get(i), createTextQuery(processedTexts.get(i)));
+            Metrics.timer("query.parse").recordSince(parseStart);
+            if (useQueryCache) {
+                ProcessedQueryKey key = new ProcessedQueryKey(textProcessingOption, normalizeClue(queriesTexts.get(index), textProcessingOption));
+                processedQueriesCache.put(key, 0, query);
+            }
+            queries.set(index, query);
+        }
+
+        return queries;
     }
 
-    // Search using the IndexSearcher
-    private JeopardyQueryResult runQuery(String query, Bert bert) {
+    // Search using the IndexSearcher, the results are ranked with the re-ranked best result first
+    private List<JeopardyQueryResult> runQuery(ProcessedQuery query, String clueText, BertEmbeddingService embeddingService, boolean useBert) {
+        long queryStart = System.nanoTime();
         List<JeopardyQueryResult> queryResults = new ArrayList<>();
 
+        IndexSearcherManager indexSearcherManager = IndexSearcherManager.forIndex(indexPath);
         try {
-            StandardAnalyzer standardAnalyzer = new StandardAnalyzer();
-            Query currentQuery = new QueryParser("content", standardAnalyzer).parse(QueryParser.escape(query));
+            IndexSearcher indexSearcher = indexSearcherManager.acquire();
+            try {
+                // The cached results are only valid for the index version they were searched on
+                long indexVersion = IndexSearcherManager.getIndexVersion(indexSearcher.getIndexReader());
+                SearchResultsKey key = new SearchResultsKey(indexPath, textProcessingOption, retrievalMode, rerankDepth,
+                        normalizeClue(clueText, textProcessingOption));
+                SearchResults searchResults = useQueryCache ? searchResultsCache.get(key, indexVersion) : null;
+                if (searchResults == null) {
+                    long searchStart = System.nanoTime();
+                    int searchDepth = searchPassages ? Math.max(MIN_PASSAGES_SEARCH_DEPTH, rerankDepth * PASSAGES_PER_RESULT) : rerankDepth;
+                    ScoreDoc[] scoreDocs = search(indexSearcher, query, clueText, embeddingService, searchDepth);
+                    Metrics.timer("query.search").recordSince(searchStart);
+
+                    long storedFieldsStart = System.nanoTime();
+                    StoredFields storedFields = indexSearcher.storedFields();
+                    String[] titles = new String[scoreDocs.length];
+                    // Identify the passage loaded for each result, the page title for the pages indexes
+                    String[] passageKeys = new String[scoreDocs.length];
+                    for (int i = 0; i < scoreDocs.length; i++) {
+                        if (searchPassages) {
+                            Document document = storedFields.document(scoreDocs[i].doc, TITLE_AND_PASSAGE_NUMBER_FIELDS);
+                            titles[i] = document.get(WikipediaIndexer.TITLE_FIELD);
+                            passageKeys[i] = WikipediaIndexer.getPassageKey(titles[i],
+                                    document.getField(WikipediaIndexer.PASSAGE_NUMBER_FIELD).numericValue().intValue());
+                        } else {
+                            titles[i] = storedFields.document(scoreDocs[i].doc, TITLE_FIELD).get(WikipediaIndexer.TITLE_FIELD);
+                            passageKeys[i] = titles[i];
+                        }
+                    }
+                    Metrics.timer("query.storedFields").recordSince(storedFieldsStart);
+                    searchResults = searchPassages
+                            ? aggregatePassages(scoreDocs, titles, passageKeys)
+                            : new SearchResults(scoreDocs, titles, passageKeys);
+                    if (useQueryCache) {
+                        searchResultsCache.put(key, indexVersion, searchResults);
+                    }
+                }
+
+                for (int i = 0; i < searchResults.scoreDocs().length; i++) {
+                    ScoreDoc searchResult = searchResults.scoreDocs()[i];
+                    int docId = searchResult.doc;
+                    queryResults.add(new JeopardyQueryResult(searchResults.titles()[i], searchResult.score,
+                            () -> loadPassage(indexSearcher, docId), searchResults.passageKeys()[i]));
+                }
 
-            Directory index = FSDirectory.open(new File(indexPath).toPath());
-            IndexReader indexReader = DirectoryReader.open(index);
-            IndexSearcher indexSearcher = new IndexSearcher(indexReader);
-            indexSearcher.setSimilarity(new LMDirichletSimilarity());
+                if (queryResults.isEmpty()) {
+                    return queryResults;
+                }
 
-            TopDocs topDocs = indexSearcher.search(currentQuery, 2);
-            ScoreDoc[] searchResults = topDocs.scoreDocs;
-            for (ScoreDoc searchResult : searchResults) {
-                int docId = searchResult.doc;
-                Document document = indexSearcher.doc(docId);
-                queryResults.add(new JeopardyQueryResult(document, searchResult.score));
+                // The passages are loaded while re-ranking, so the searcher is released after it
+                JeopardyQueryResult bestResult = reRankDocuments(queryResults, query.text(), useBert ? embeddingService : null);
+                Metrics.timer("query.total").recordSince(queryStart);
+                return moveToFront(queryResults, bestResult);
+            } finally {
+                indexSearcherManager.release(indexSearcher);
             }
 
-            indexReader.close();
-
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        return reRankDocuments(queryResults, query, bert);
+        return queryResults;
+    }
+
+    private static List<JeopardyQueryResult> moveToFront(List<JeopardyQueryResult> results, JeopardyQueryResult result) {
+        if (results.remove(result)) {
+            results.add(0, result);
+        }
+        return results;
+    }
+
+    // Collapse the whitespaces of the clue, so the same clue written differently uses the same cache entries.
+    // The clue is lower cased unless it is lemmatized, the part of speech tags and so the lemmas depend on the case
+    private static String normalizeClue(String clue, TextProcessingOption textProcessingOption) {
+        String normalizedClue = clue.trim().replaceAll("\\s+", " ");
+        return textProcessingOption == TextProcessingOption.LEMMATIZATION ? normalizedClue : normalizedClue.toLowerCase(Locale.ROOT);
+    }
+
+    // Keep the best passage of each page, the pages are ranked by the score of their best passage
+    private SearchResults aggregatePassages(ScoreDoc[] scoreDocs, String[] titles, String[] passageKeys) {
+        Set<String> foundTitles = new HashSet<>();
+        List<Integer> bestPassages = new ArrayList<>(rerankDepth);
+        for (int i = 0; i < scoreDocs.length && bestPassages.size() < rerankDepth; i++) {
+            if (foundTitles.add(titles[i])) {
+                bestPassages.add(i);
+            }
+        }
+
+        ScoreDoc[] pagesScoreDocs = new ScoreDoc[bestPassages.size()];
+        String[] pagesTitles = new String[bestPassages.size()];
+        String[] pagesPassageKeys = new String[bestPassages.size()];
+        for (int i = 0; i < bestPassages.size(); i++) {
+            pagesScoreDocs[i] = scoreDocs[bestPassages.get(i)];
+            pagesTitles[i] = titles[bestPassages.get(i)];
+            pagesPassageKeys[i] = passageKeys[bestPassages.get(i)];
+        }
+        return new SearchResults(pagesScoreDocs, pagesTitles, pagesPassageKeys);
+    }
+
+    // Load the stored passage of a document, indexes built before the passages were stored have the full content
+    private static String loadPassage(IndexSearcher indexSearcher, int docId) {
+        try {
+            long startTime = System.nanoTime();
+            Document document = indexSearcher.storedFields().document(docId, PASSAGE_FIELDS);
+            String passage = document.get(WikipediaIndexer.PASSAGE_FIELD);
+            Metrics.timer("query.passageFetch").recordSince(startTime);
+            return passage != null ? passage : document.get("content");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Retrieve the best documents with the text query, the query embedding or both
+    private ScoreDoc[] search(IndexSearcher indexSearcher, ProcessedQuery query, String clueText, BertEmbeddingService embeddingService,
+                              int numberOfResults) throws Exception {
+        if (retrievalMode != RetrievalMode.TEXT) {
+            checkVectorField(indexSearcher.getIndexReader());
+        }
+        switch (retrievalMode) {
+            case VECTOR -> {
+                return indexSearcher.search(createVectorQuery(clueText, embeddingService, numberOfResults), numberOfResults).scoreDocs;
+            }
+            case HYBRID -> {
+                int searchDepth = Math.max(HYBRID_SEARCH_DEPTH, numberOfResults);
+                TopDocs textTopDocs = indexSearcher.search(query.query(), searchDepth);
+                TopDocs vectorTopDocs = indexSearcher.search(createVectorQuery(clueText, embeddingService, searchDepth), searchDepth);
+                return reciprocalRankFusion(numberOfResults, textTopDocs, vectorTopDocs);
+            }
+            default -> {
+                return indexSearcher.search(query.query(), numberOfResults).scoreDocs;
+            }
+        }
+    }
+
+    private Query createTextQuery(String query) throws ParseException {
+        return new QueryParser("content", analyzer).parse(QueryParser.escape(query));
+    }
+
+    // Fail instead of searching a missing vector field, which finds no documents
+    private void checkVectorField(IndexReader indexReader) {
+        for (LeafReaderContext leaf : indexReader.leaves()) {
+            FieldInfo fieldInfo = leaf.reader().getFieldInfos().fieldInfo(WikipediaIndexer.EMBEDDING_FIELD);
+            if (fieldInfo != null && fieldInfo.getVectorDimension() > 0) {
+                return;
+            }
+        }
+        throw new IllegalStateException("The index does not have the embeddings needed by retrieval=" + retrievalMode.name().toLowerCase()
+                + ", build the index with embeddings: " + indexPath);
+    }
+
+    private Query createVectorQuery(String clueText, BertEmbeddingService embeddingService, int numberOfResults) {
+        return new KnnFloatVectorQuery(WikipediaIndexer.EMBEDDING_FIELD, embeddingService.embed(clueText), numberOfResults);
+    }
+
+    // Merge the rankings, each document is scored with the sum of 1 / (k + rank) over the rankings
+    private static ScoreDoc[] reciprocalRankFusion(int numberOfResults, TopDocs... rankings) {
+        Map<Integer, Float> fusedScores = new HashMap<>();
+        for (TopDocs ranking : rankings) {
+            for (int rank = 0; rank < ranking.scoreDocs.length; rank++) {
+                fusedScores.merge(ranking.scoreDocs[rank].doc, 1.0f / (RECIPROCAL_RANK_FUSION_K + rank + 1), Float::sum);
+            }
+        }
+
+        return fusedScores.entrySet().stream()
+                .map(entry -> new ScoreDoc(entry.getKey(), entry.getValue()))
+                .sorted(Comparator.<ScoreDoc>comparingDouble(scoreDoc -> -scoreDoc.score).thenComparingInt(scoreDoc -> scoreDoc.doc))
+                .limit(numberOfResults)
+                .toArray(ScoreDoc[]::new);
     }
 
-    // Update the categories map with the answers
+    // Update the categories map with the answers, atomically for each category
     private void addToCategoriesAnswers(String category, boolean correctAnswer) {
         categoriesAnswers.compute(category, (key, existingPair) -> {
             if (existingPair == null) {
@@ -159,50 +645,130 @@ public class JeopardyQuery {
         });
     }
 
-    // Chose between the results when the score is lower than 1, using bert
-    private JeopardyQueryResult reRankDocuments(List<JeopardyQueryResult> results, String query, Bert bert) {
+    // Chose between the top results when the score difference of the first two is lower than 1, using bert
+    private JeopardyQueryResult reRankDocuments(List<JeopardyQueryResult> results, String query, BertEmbeddingService embeddingService) {
         JeopardyQueryResult firstResult = results.get(0);
-        if (bert == null) {
+        if (embeddingService == null || results.size() < 2) {
             return firstResult;
         }
 
-        JeopardyQueryResult secondResult = results.get(0);
+        JeopardyQueryResult secondResult = results.get(1);
 
         double scoreDifference = firstResult.documentScore() - secondResult.documentScore();
         if (scoreDifference < 1) {
-            float[] queryEmbedding = bert.embedSequence(query);
-            float[] firstResultContentEmbedding = bert.embedSequence(firstResult.getContent());
-            float[] secondResultContentEmbedding = bert.embedSequence(secondResult.getContent());
-
-            if (cosineSimilarity(queryEmbedding, firstResultContentEmbedding) > cosineSimilarity(queryEmbedding, secondResultContentEmbedding)) {
-                return firstResult;
+            long startTime = System.nanoTime();
+
+            float[] queryEmbedding = embeddingService.embed(query);
+            float[] similarities = calculateSimilarities(queryEmbedding, results, embeddingService);
+
+            JeopardyQueryResult bestResult = firstResult;
+            float bestSimilarity = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < results.size(); i++) {
+                float similarity = similarities[i];
+                if (similarity > bestSimilarity) {
+                    bestSimilarity = similarity;
+                    bestResult = results.get(i);
+                }
             }
-            return secondResult;
+
+            long rerankTime = System.nanoTime() - startTime;
+            rerankNanos.add(rerankTime);
+            Metrics.timer("query.rerank").record(rerankTime);
+            rerankedQueries.increment();
+            return bestResult;
         }
 
         return firstResult;
     }
 
-    // Calculate the cosine similarity of two vectors
-    private static double cosineSimilarity(float[] vector1, float[] vector2) {
+    // Calculate the similarity of the query with each result, directly over the mapped bytes for the results in the embedding store
+    private float[] calculateSimilarities(float[] queryEmbedding, List<JeopardyQueryResult> results, BertEmbeddingService embeddingService) {
+        float[] similarities = new float[results.size()];
+        List<JeopardyQueryResult> missingResults = new ArrayList<>();
+        List<Integer> missingIndexes = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            int ordinal = embeddingStore == null ? -1 : embeddingStore.getOrdinal(results.get(i).passageKey());
+            if (ordinal >= 0) {
+                similarities[i] = embeddingStore.cosineSimilarity(queryEmbedding, ordinal);
+            } else {
+                missingResults.add(results.get(i));
+                missingIndexes.add(i);
+            }
+        }
+        Metrics.add("query.storedEmbeddings", results.size() - missingResults.size());
+        if (embeddingStore != null) {
+            // Embedded again with BERT, the store does not have these documents
+            Metrics.add("query.missingStoredEmbeddings", missingResults.size());
+        }
+
+        if (!missingResults.isEmpty()) {
+            List<float[]> missingEmbeddings = embeddingService.embedDocuments(missingResults);
+            for (int i = 0; i < missingEmbeddings.size(); i++) {
+                similarities[missingIndexes.get(i)] = cosineSimilarity(queryEmbedding, missingEmbeddings.get(i));
+            }
+        }
+        return similarities;
+    }
+
+    // Calculate the cosine similarity of two vectors, using the vectorized Lucene implementation when available
+    static float cosineSimilarity(float[] vector1, float[] vector2) {
         if (vector1.length != vector2.length) {
             throw new IllegalArgumentException("Vector dimensions must be the same");
         }
 
-        double dotProduct = 0.0;
-        double magnitude1 = 0.0;
-        double magnitude2 = 0.0;
+        // The norms are checked before dividing, VectorUtil.cosine asserts that its result is finite
+        float squaredNorm1 = VectorUtil.dotProduct(vector1, vector1);
+        float squaredNorm2 = VectorUtil.dotProduct(vector2, vector2);
+        if (squaredNorm1 == 0 || squaredNorm2 == 0) {
+            return 0.0f; // One of the vectors is zero
+        }
+        return (float) (VectorUtil.dotProduct(vector1, vector2) / Math.sqrt((double) squaredNorm1 * squaredNorm2));
+    }
+
+    private record ProcessedQueryKey(TextProcessingOption textProcessingOption, String normalizedClue) {
+    }
+
+    private record ProcessedQuery(String text, Query query) {
+    }
+
+    private record SearchResultsKey(String indexPath, TextProcessingOption textProcessingOption, RetrievalMode retrievalMode,
+                                    int numberOfResults, String normalizedClue) {
+    }
 
-        for (int i = 0; i < vector1.length; i++) {
-            dotProduct += vector1[i] * vector2[i];
-            magnitude1 += Math.pow(vector1[i], 2);
-            magnitude2 += Math.pow(vector2[i], 2);
+    private record SearchResults(ScoreDoc[] scoreDocs, String[] titles, String[] passageKeys) {
+    }
+
+    private record PendingClue(JeopardyClue clue, Future<List<JeopardyQueryResult>> results) {
+    }
+
+    private record ConfigurationEvaluation(SearchConfiguration configuration, AnswerStatistics statistics, StageTimer latency,
+                                           long elapsedNanos) {
+    }
+
+    // The accuracy of the answered clues, updated by the thread that prints the results
+    private static class AnswerStatistics {
+        private long answeredClues = 0;
+        private long correctAnswers = 0;
+        private long skippedClues = 0;
+        private double reciprocalRanksSum = 0.0;
+
+        // Add an answered clue, the rank of the expected answer is 0 when it was not retrieved
+        private void add(int answerRank) {
+            answeredClues += 1;
+            if (answerRank == 1) {
+                correctAnswers += 1;
+            }
+            if (answerRank > 0) {
+                reciprocalRanksSum += 1.0 / answerRank;
+            }
         }
 
-        if (magnitude1 == 0.0 || magnitude2 == 0.0) {
-            return 0.0; // Avoid division by zero
+        private double getPrecisionAt1() {
+            return answeredClues == 0 ? 0.0 : correctAnswers / (double) answeredClues;
         }
 
-        return dotProduct / (Math.sqrt(magnitude1) * Math.sqrt(magnitude2));
+        private double getMeanReciprocalRank() {
+            return answeredClues == 0 ? 0.0 : reciprocalRanksSum / answeredClues;
+        }
     }
 }
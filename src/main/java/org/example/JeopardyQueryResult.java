@@ -1,18 +1,24 @@
 package org.example;
 
-import org.apache.lucene.document.Document;
+import java.util.function.Supplier;
 
 /**
  * Hold the information for a Jeopardy query result
- * @param document the document that was retrieved
+ * @param title the title of the document that was retrieved
  * @param documentScore the document score for the query
+ * @param contentLoader loads the text of the document, only when it is needed for re-ranking
+ * @param passageKey identifies the loaded text, the title for a page or the title and number for a passage
  */
-public record JeopardyQueryResult(Document document, double documentScore) {
+public record JeopardyQueryResult(String title, double documentScore, Supplier<String> contentLoader, String passageKey) {
+    public JeopardyQueryResult(String title, double documentScore, Supplier<String> contentLoader) {
+        this(title, documentScore, contentLoader, title);
+    }
+
     public String getTitle() {
-        return document.get("title");
+        return title;
     }
 
     public String getContent() {
-        return document.get("content");
+        return contentLoader.get();
     }
 }
@@ -0,0 +1,254 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answer Jeopardy clues over a local HTTP endpoint, with the indexes and the BERT model loaded once.
+ * <p>
+ * GET or POST /answer with the category, clue and optionally option parameters
+ * returns the ranked titles and scores as JSON, GET /health returns ok.
+ */
+public class JeopardyServer implements Closeable {
+
+    private static final int BERT_EMBEDDINGS_CACHE_SIZE = 10_000;
+    // Time a request waits for a free query slot before it is rejected
+    private static final long QUERY_SLOT_TIMEOUT_MILLIS = 5_000;
+    private static final int WARM_UP_CLUES = 20;
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private final Map<TextProcessingOption, JeopardyQuery> jeopardyQueries;
+    private final TextProcessingOption defaultOption;
+    private final boolean useBert;
+    private final Semaphore querySlots;
+    private final BertEmbeddingService embeddingService;
+    private final ExecutorService requestExecutor;
+    private final HttpServer httpServer;
+
+    /**
+     * @param jeopardyQueries the query of each index that can be searched, their questions are used to warm up the server
+     * @param defaultOption the index searched when the request does not specify one
+     * @param maxConcurrentQueries the maximum number of clues answered at the same time
+     */
+    public JeopardyServer(int port, Map<TextProcessingOption, JeopardyQuery> jeopardyQueries, TextProcessingOption defaultOption,
+                          RetrievalMode retrievalMode, boolean useBert, int maxConcurrentQueries) throws IOException {
+        if (!jeopardyQueries.containsKey(defaultOption)) {
+            throw new IllegalArgumentException("The default index must be served");
+        }
+        if (maxConcurrentQueries < 1) {
+            throw new IllegalArgumentException("The number of concurrent queries must be positive");
+        }
+
+        this.jeopardyQueries = new EnumMap<>(jeopardyQueries);
+        this.defaultOption = defaultOption;
+        this.useBert = useBert;
+        this.querySlots = new Semaphore(maxConcurrentQueries);
+        this.embeddingService = useBert || retrievalMode != RetrievalMode.TEXT
+                ? BertEmbeddingService.load(BERT_EMBEDDINGS_CACHE_SIZE, Path.of(Utils.getBertEmbeddingsCachePath()))
+                : null;
+
+        // More handler threads than query slots, so the rejected requests are answered quickly
+        this.requestExecutor = Executors.newFixedThreadPool(maxConcurrentQueries * 2);
+        this.httpServer = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        httpServer.setExecutor(requestExecutor);
+        httpServer.createContext("/answer", this::handleAnswer);
+        httpServer.createContext("/health", exchange -> sendResponse(exchange, 200, "text/plain", "ok"));
+    }
+
+    /**
+     * Warm up the indexes and the model, then start accepting requests
+     */
+    public void start() {
+        warmUp();
+        httpServer.start();
+        System.out.println("Jeopardy server listening on: http://localhost:" + httpServer.getAddress().getPort() + "/answer");
+    }
+
+    /**
+     * Answer the first clues of the questions with each index, so the searchers, the caches and the model
+     * are loaded before the first request. The warm-up queries bypass the query cache.
+     */
+    private void warmUp() {
+        long startTime = System.nanoTime();
+        List<JeopardyClue> clues = new ArrayList<>();
+        try {
+            clues.addAll(jeopardyQueries.get(defaultOption).readClues(WARM_UP_CLUES));
+        } catch (IOException e) {
+            System.out.println("Could not read the warm-up clues: " + e.getMessage());
+        }
+        if (clues.isEmpty()) {
+            clues.add(new JeopardyClue("WARM UP", "Warm up the index", ""));
+        }
+
+        for (JeopardyQuery jeopardyQuery : jeopardyQueries.values()) {
+            jeopardyQuery.setUseQueryCache(false);
+            try {
+                for (JeopardyClue clue : clues) {
+                    jeopardyQuery.rankAnswers(clue, embeddingService, useBert);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                jeopardyQuery.setUseQueryCache(true);
+            }
+        }
+
+        System.out.println("Warmed up " + jeopardyQueries.keySet() + " with " + clues.size() + " clues in "
+                + String.format("%.2f", (System.nanoTime() - startTime) / 1_000_000_000.0) + " s");
+    }
+
+    private void handleAnswer(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "text/plain", "Use GET or POST");
+                return;
+            }
+
+            Map<String, String> parameters = parseParameters(exchange);
+            String clue = parameters.get("clue");
+            if (clue == null || clue.isBlank()) {
+                sendResponse(exchange, 400, "text/plain", "The clue parameter is required");
+                return;
+            }
+            String category = parameters.getOrDefault("category", "");
+
+            TextProcessingOption textProcessingOption = defaultOption;
+            if (parameters.containsKey("option")) {
+                try {
+                    textProcessingOption = TextProcessingOption.valueOf(parameters.get("option").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    textProcessingOption = null;
+                }
+            }
+            JeopardyQuery jeopardyQuery = jeopardyQueries.get(textProcessingOption);
+            if (jeopardyQuery == null) {
+                sendResponse(exchange, 400, "text/plain", "The index is not served, available: " + jeopardyQueries.keySet());
+                return;
+            }
+
+            if (!querySlots.tryAcquire(QUERY_SLOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Metrics.increment("server.rejectedRequests");
+                sendResponse(exchange, 503, "text/plain", "Too many concurrent requests");
+                return;
+            }
+
+            long startTime = System.nanoTime();
+            List<JeopardyQueryResult> results;
+            try {
+                results = jeopardyQuery.rankAnswers(new JeopardyClue(category, clue, ""), embeddingService, useBert);
+            } finally {
+                querySlots.release();
+            }
+            long elapsedNanos = System.nanoTime() - startTime;
+            Metrics.timer("server.answer").record(elapsedNanos);
+
+            sendResponse(exchange, 200, "application/json", toJson(textProcessingOption, results, elapsedNanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendResponse(exchange, 503, "text/plain", "Interrupted");
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendResponse(exchange, 500, "text/plain", "Could not answer the clue: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the parameters from the query string and, for a POST request, from the form encoded body
+     */
+    private static Map<String, String> parseParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        addParameters(parameters, exchange.getRequestURI().getRawQuery());
+        if ("POST".equals(exchange.getRequestMethod())) {
+            try (InputStream body = exchange.getRequestBody()) {
+                addParameters(parameters, new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static void addParameters(Map<String, String> parameters, String encodedParameters) {
+        if (encodedParameters == null || encodedParameters.isEmpty()) {
+            return;
+        }
+        for (String parameter : encodedParameters.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static String toJson(TextProcessingOption textProcessingOption, List<JeopardyQueryResult> results, long elapsedNanos) {
+        StringBuilder json = new StringBuilder("{\"option\": \"").append(textProcessingOption).append("\", \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append("{\"title\": \"").append(escapeJson(results.get(i).getTitle()))
+                    .append("\", \"score\": ").append(results.get(i).documentScore()).append('}');
+        }
+        return json.append("], \"tookMs\": ").append(String.format("%.3f", elapsedNanos / 1_000_000.0)).append('}').toString();
+    }
+
+    private static String escapeJson(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> escaped.append("\\\"");
+                case '\\' -> escaped.append("\\\\");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                case '\t' -> escaped.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+                }
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static void sendResponse(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Stop accepting requests, let the running ones finish and release the model
+     */
+    @Override
+    public void close() {
+        httpServer.stop(STOP_DELAY_SECONDS);
+        requestExecutor.shutdown();
+        if (embeddingService != null) {
+            embeddingService.close();
+        }
+    }
+}
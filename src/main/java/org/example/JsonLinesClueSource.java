@@ -0,0 +1,154 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read the clues of a JSON lines file, each line is a flat object with the category, clue (or question) and answer.
+ * The other fields are ignored, the nested objects and arrays are not supported.
+ */
+public class JsonLinesClueSource implements ClueSource {
+
+    private final Path path;
+    private final BufferedReader reader;
+    private long lineNumber = 0;
+
+    public JsonLinesClueSource(Path path) throws IOException {
+        this.path = path;
+        this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public JeopardyClue next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber += 1;
+            if (!line.isBlank()) {
+                Map<String, String> fields = parseObject(line);
+                return new JeopardyClue(
+                        fields.getOrDefault("category", "").trim(),
+                        fields.getOrDefault("clue", fields.getOrDefault("question", "")).trim(),
+                        fields.getOrDefault("answer", "").trim()
+                );
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Parse a flat JSON object, the values that are not strings are kept as their text
+     */
+    private Map<String, String> parseObject(String line) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        int[] position = {skipWhitespace(line, 0)};
+        expect(line, position, '{');
+
+        position[0] = skipWhitespace(line, position[0]);
+        if (position[0] < line.length() && line.charAt(position[0]) == '}') {
+            return fields;
+        }
+
+        while (true) {
+            position[0] = skipWhitespace(line, position[0]);
+            String key = parseString(line, position);
+            position[0] = skipWhitespace(line, position[0]);
+            expect(line, position, ':');
+            position[0] = skipWhitespace(line, position[0]);
+            fields.put(key, parseValue(line, position));
+
+            position[0] = skipWhitespace(line, position[0]);
+            if (position[0] < line.length() && line.charAt(position[0]) == ',') {
+                position[0] += 1;
+                continue;
+            }
+            expect(line, position, '}');
+            return fields;
+        }
+    }
+
+    private String parseValue(String line, int[] position) throws IOException {
+        if (position[0] < line.length() && line.charAt(position[0]) == '"') {
+            return parseString(line, position);
+        }
+
+        int start = position[0];
+        while (position[0] < line.length() && line.charAt(position[0]) != ',' && line.charAt(position[0]) != '}') {
+            if (line.charAt(position[0]) == '{' || line.charAt(position[0]) == '[') {
+                throw error("Nested values are not supported");
+            }
+            position[0] += 1;
+        }
+        String value = line.substring(start, position[0]).trim();
+        return "null".equals(value) ? "" : value;
+    }
+
+    private String parseString(String line, int[] position) throws IOException {
+        expect(line, position, '"');
+        StringBuilder value = new StringBuilder();
+        while (position[0] < line.length()) {
+            char c = line.charAt(position[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (position[0] >= line.length()) {
+                break;
+            }
+            char escaped = line.charAt(position[0]++);
+            switch (escaped) {
+                case 'n' -> value.append('\n');
+                case 't' -> value.append('\t');
+                case 'r' -> value.append('\r');
+                case 'b' -> value.append('\b');
+                case 'f' -> value.append('\f');
+                case 'u' -> {
+                    int codeUnit = 0;
+                    for (int i = 0; i < 4; i++) {
+                        // Only ASCII hex digits, Character.digit also accepts the other Unicode digits
+                        char hexDigit = position[0] < line.length() ? line.charAt(position[0]) : 'g';
+                        int digit = hexDigit < 128 ? Character.digit(hexDigit, 16) : -1;
+                        if (digit < 0) {
+                            throw error("Invalid unicode escape");
+                        }
+                        codeUnit = codeUnit * 16 + digit;
+                        position[0] += 1;
+                    }
+                    value.append((char) codeUnit);
+                }
+                default -> value.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private void expect(String line, int[] position, char expected) throws IOException {
+        if (position[0] >= line.length() || line.charAt(position[0]) != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+        position[0] += 1;
+    }
+
+    private static int skipWhitespace(String line, int position) {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+            position += 1;
+        }
+        return position;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at line " + lineNumber + " of: " + path);
+    }
+}
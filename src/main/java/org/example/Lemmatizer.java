@@ -0,0 +1,95 @@
+package org.example;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.process.Morphology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lemmatize texts with a single CoreNLP pipeline shared by all the threads.
+ * The pipeline splits the text in sentences and tags them, the lemmas of the already seen (word, tag) pairs are cached.
+ */
+public class Lemmatizer {
+
+    private static final int MAX_CACHED_LEMMAS = 1_000_000;
+
+    private final StanfordCoreNLP pipeline;
+    private final int annotationThreads;
+    private final Map<String, String> lemmasCache = new ConcurrentHashMap<>();
+    private final ThreadLocal<Morphology> morphology = ThreadLocal.withInitial(Morphology::new);
+
+    private Lemmatizer(int annotationThreads) {
+        Properties properties = new Properties();
+        properties.setProperty("annotators", "tokenize,ssplit,pos");
+        this.pipeline = new StanfordCoreNLP(properties);
+        this.annotationThreads = annotationThreads;
+    }
+
+    /**
+     * Get the lemmatizer of the process, the pipeline is loaded on first use
+     */
+    public static Lemmatizer getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Lemmatize a text and join the lemmas with spaces
+     */
+    public String lemmatize(String text) {
+        Annotation annotation = new Annotation(text);
+        pipeline.annotate(annotation);
+        return joinLemmas(annotation);
+    }
+
+    /**
+     * Lemmatize a batch of texts, annotating them in parallel
+     */
+    public List<String> lemmatize(List<String> texts) {
+        List<Annotation> annotations = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            annotations.add(new Annotation(text));
+        }
+
+        pipeline.annotate(annotations, annotationThreads);
+
+        List<String> lemmatizedTexts = new ArrayList<>(annotations.size());
+        for (Annotation annotation : annotations) {
+            lemmatizedTexts.add(joinLemmas(annotation));
+        }
+        return lemmatizedTexts;
+    }
+
+    private String joinLemmas(Annotation annotation) {
+        StringBuilder lemmas = new StringBuilder();
+        for (CoreLabel token : annotation.get(CoreAnnotations.TokensAnnotation.class)) {
+            if (lemmas.length() > 0) {
+                lemmas.append(' ');
+            }
+            lemmas.append(lemma(token.word(), token.tag()));
+        }
+        return lemmas.toString();
+    }
+
+    private String lemma(String word, String tag) {
+        String key = word + '\t' + tag;
+        String lemma = lemmasCache.get(key);
+        if (lemma == null) {
+            lemma = morphology.get().lemma(word, tag);
+            if (lemmasCache.size() < MAX_CACHED_LEMMAS) {
+                lemmasCache.put(key, lemma);
+            }
+        }
+        return lemma;
+    }
+
+    private static class InstanceHolder {
+        private static final Lemmatizer INSTANCE = new Lemmatizer(Runtime.getRuntime().availableProcessors());
+    }
+}
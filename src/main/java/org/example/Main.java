@@ -2,16 +2,69 @@ package org.example;
 
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 public class Main {
 
-    public static void main(String[] args) {
+    private static final String THREADS_ARG_PREFIX = "threads=";
+    private static final String QUERY_THREADS_ARG_PREFIX = "querythreads=";
+    private static final String RETRIEVAL_ARG_PREFIX = "retrieval=";
+    private static final String RERANK_DEPTH_ARG_PREFIX = "rerankdepth=";
+    private static final String METRICS_ARG_PREFIX = "metrics=";
+    private static final String PORT_ARG_PREFIX = "port=";
+    private static final String MAX_QUERIES_ARG_PREFIX = "maxqueries=";
+    private static final String RAM_BUFFER_ARG_PREFIX = "rambuffer=";
+    private static final String MERGE_THREADS_ARG_PREFIX = "mergethreads=";
+    private static final String MERGE_POLICY_ARG_PREFIX = "mergepolicy=";
+    private static final String COMPOUND_FILE_ARG_PREFIX = "compound=";
+    private static final String FORCE_MERGE_ARG_PREFIX = "forcemerge=";
+    private static final String COMMIT_EVERY_ARG_PREFIX = "commitevery=";
+    private static final String QUESTIONS_ARG_PREFIX = "questions=";
+    private static final String SHARDS_ARG_PREFIX = "shards=";
+    private static final String STORAGE_ARG_PREFIX = "storage=";
+    private static final String INDEX_DIR_ARG_PREFIX = "indexdir=";
+    private static final String WIKI_DIR_ARG_PREFIX = "wikidir=";
+    private static final String CONFIG_ARG_PREFIX = "config=";
+
+    private static int indexingThreads = Runtime.getRuntime().availableProcessors();
+    private static int queryThreads = Runtime.getRuntime().availableProcessors();
+    private static RetrievalMode retrievalMode = RetrievalMode.TEXT;
+    private static int rerankDepth = 2;
+    private static boolean indexEmbeddings = false;
+    private static boolean updateIndexes = false;
+    private static boolean indexPassages = false;
+    private static boolean useEmbeddingStore = false;
+    private static QuantizedEmbeddingStore embeddingStore;
+    private static String metricsReportPath = null;
+    private static boolean serverMode = false;
+    private static boolean sweepMode = false;
+    private static int serverPort = 8080;
+    private static int maxConcurrentQueries = Runtime.getRuntime().availableProcessors();
+    private static IndexWriterTuning indexWriterTuning = IndexWriterTuning.defaults();
+    private static String jeopardyQuestionsPath = Utils.JEOPARDY_QUESTIONS_PATH;
+    private static int shards = 1;
+    private static boolean snapshotIndexes = false;
+
+    public static void main(String[] commandLineArgs) {
 
         boolean useBert = false;
         boolean all = false;
+        boolean lemmatization = false;
+        List<String> args = readConfigArgs(commandLineArgs);
+
+        // The tuning arguments override the bulk load settings, whatever their order
+        for (String arg : args) {
+            if ("bulk".equalsIgnoreCase(arg)) {
+                indexWriterTuning = IndexWriterTuning.bulkLoad();
+            }
+        }
 
         for (String arg : args) {
             if ("bert".equalsIgnoreCase(arg)) {
@@ -20,21 +73,187 @@ public class Main {
             if ("all".equalsIgnoreCase(arg)) {
                 all = true;
             }
+            if ("lemmatization".equalsIgnoreCase(arg)) {
+                lemmatization = true;
+            }
+            if (arg.toLowerCase().startsWith(THREADS_ARG_PREFIX)) {
+                indexingThreads = Integer.parseInt(arg.substring(THREADS_ARG_PREFIX.length()));
+            }
+            if (arg.toLowerCase().startsWith(QUERY_THREADS_ARG_PREFIX)) {
+                queryThreads = Integer.parseInt(arg.substring(QUERY_THREADS_ARG_PREFIX.length()));
+            }
+            if (arg.toLowerCase().startsWith(RETRIEVAL_ARG_PREFIX)) {
+                retrievalMode = RetrievalMode.valueOf(arg.substring(RETRIEVAL_ARG_PREFIX.length()).toUpperCase());
+            }
+            if (arg.toLowerCase().startsWith(RERANK_DEPTH_ARG_PREFIX)) {
+                rerankDepth = Integer.parseInt(arg.substring(RERANK_DEPTH_ARG_PREFIX.length()));
+            }
+            if ("update".equalsIgnoreCase(arg)) {
+                updateIndexes = true;
+            }
+            if ("embeddings".equalsIgnoreCase(arg)) {
+                indexEmbeddings = true;
+            }
+            if ("passages".equalsIgnoreCase(arg)) {
+                indexPassages = true;
+            }
+            if ("quantized".equalsIgnoreCase(arg)) {
+                useEmbeddingStore = true;
+            }
+            if (arg.toLowerCase().startsWith(METRICS_ARG_PREFIX)) {
+                metricsReportPath = arg.substring(METRICS_ARG_PREFIX.length());
+            }
+            if ("jmx".equalsIgnoreCase(arg)) {
+                Metrics.enableJmx();
+            }
+            if ("server".equalsIgnoreCase(arg)) {
+                serverMode = true;
+            }
+            if ("sweep".equalsIgnoreCase(arg)) {
+                sweepMode = true;
+            }
+            if (arg.toLowerCase().startsWith(PORT_ARG_PREFIX)) {
+                serverPort = Integer.parseInt(arg.substring(PORT_ARG_PREFIX.length()));
+            }
+            if (arg.toLowerCase().startsWith(MAX_QUERIES_ARG_PREFIX)) {
+                maxConcurrentQueries = Integer.parseInt(arg.substring(MAX_QUERIES_ARG_PREFIX.length()));
+            }
+            if (arg.toLowerCase().startsWith(RAM_BUFFER_ARG_PREFIX)) {
+                indexWriterTuning.setRamBufferSizeMb(Double.parseDouble(arg.substring(RAM_BUFFER_ARG_PREFIX.length())));
+            }
+            if (arg.toLowerCase().startsWith(MERGE_THREADS_ARG_PREFIX)) {
+                indexWriterTuning.setMergeThreads(Integer.parseInt(arg.substring(MERGE_THREADS_ARG_PREFIX.length())));
+            }
+            if (arg.toLowerCase().startsWith(MERGE_POLICY_ARG_PREFIX)) {
+                indexWriterTuning.setMergePolicyType(IndexWriterTuning.MergePolicyType.valueOf(arg.substring(MERGE_POLICY_ARG_PREFIX.length()).toUpperCase()));
+            }
+            if (arg.toLowerCase().startsWith(COMPOUND_FILE_ARG_PREFIX)) {
+                indexWriterTuning.setUseCompoundFile(Boolean.parseBoolean(arg.substring(COMPOUND_FILE_ARG_PREFIX.length())));
+            }
+            if (arg.toLowerCase().startsWith(FORCE_MERGE_ARG_PREFIX)) {
+                indexWriterTuning.setForceMergeSegments(Integer.parseInt(arg.substring(FORCE_MERGE_ARG_PREFIX.length())));
+            }
+            if (arg.toLowerCase().startsWith(COMMIT_EVERY_ARG_PREFIX)) {
+                indexWriterTuning.setCommitIntervalFiles(Integer.parseInt(arg.substring(COMMIT_EVERY_ARG_PREFIX.length())));
+            }
+            if (arg.toLowerCase().startsWith(QUESTIONS_ARG_PREFIX)) {
+                jeopardyQuestionsPath = arg.substring(QUESTIONS_ARG_PREFIX.length());
+            }
+            if (arg.toLowerCase().startsWith(SHARDS_ARG_PREFIX)) {
+                shards = Integer.parseInt(arg.substring(SHARDS_ARG_PREFIX.length()));
+            }
+            if (arg.toLowerCase().startsWith(STORAGE_ARG_PREFIX)) {
+                IndexStorage.setMode(IndexStorage.Mode.valueOf(arg.substring(STORAGE_ARG_PREFIX.length()).toUpperCase()));
+            }
+            if ("preload".equalsIgnoreCase(arg)) {
+                IndexStorage.setPreload(true);
+            }
+            if ("snapshot".equalsIgnoreCase(arg)) {
+                snapshotIndexes = true;
+            }
+            if (arg.toLowerCase().startsWith(INDEX_DIR_ARG_PREFIX)) {
+                Utils.setIndexDirectoryPath(arg.substring(INDEX_DIR_ARG_PREFIX.length()));
+            }
+            if (arg.toLowerCase().startsWith(WIKI_DIR_ARG_PREFIX)) {
+                Utils.setWikipediaDatasetDirectoryPath(arg.substring(WIKI_DIR_ARG_PREFIX.length()));
+            }
 
         }
 
+        List<TextProcessingOption> textProcessingOptions = new ArrayList<>();
         if (all) {
-            buildIndex(TextProcessingOption.NONE);
-            buildIndex(TextProcessingOption.STOP_WORDS);
-            buildIndex(TextProcessingOption.STEMMING);
-            buildIndex(TextProcessingOption.STOP_WORDS_STEMMING);
-            startQuery(TextProcessingOption.NONE, useBert);
-            startQuery(TextProcessingOption.STOP_WORDS, useBert);
-            startQuery(TextProcessingOption.STEMMING, useBert);
-            startQuery(TextProcessingOption.STOP_WORDS_STEMMING, useBert);
+            textProcessingOptions.addAll(List.of(
+                    TextProcessingOption.NONE,
+                    TextProcessingOption.STOP_WORDS,
+                    TextProcessingOption.STEMMING,
+                    TextProcessingOption.STOP_WORDS_STEMMING
+            ));
         } else {
-            buildIndex(TextProcessingOption.NONE);
-            startQuery(TextProcessingOption.NONE, false);
+            textProcessingOptions.add(TextProcessingOption.NONE);
+        }
+        if (lemmatization) {
+            textProcessingOptions.add(TextProcessingOption.LEMMATIZATION);
+        }
+
+        buildIndexes(textProcessingOptions);
+        if (serverMode) {
+            startServer(textProcessingOptions, useBert);
+            return;
+        }
+        for (TextProcessingOption textProcessingOption : textProcessingOptions) {
+            if (sweepMode) {
+                evaluateConfigurations(textProcessingOption);
+            } else {
+                startQuery(textProcessingOption, all && useBert);
+            }
+        }
+
+        IndexSearcherManager.closeAll();
+        IndexStorage.closeAll();
+        writeMetrics();
+    }
+
+    /**
+     * Get the arguments of the config file given with config=, followed by the command line arguments that override them.
+     * The config file has one argument per line, written as on the command line, the lines starting with # are ignored.
+     */
+    private static List<String> readConfigArgs(String[] commandLineArgs) {
+        List<String> args = new ArrayList<>();
+        for (String arg : commandLineArgs) {
+            if (arg.toLowerCase().startsWith(CONFIG_ARG_PREFIX)) {
+                Path configPath = Paths.get(arg.substring(CONFIG_ARG_PREFIX.length()));
+                try {
+                    for (String line : Files.readAllLines(configPath)) {
+                        String configArg = line.trim();
+                        if (!configArg.isEmpty() && !configArg.startsWith("#")) {
+                            args.add(configArg);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read the config file: " + configPath, e);
+                }
+            }
+        }
+        args.addAll(List.of(commandLineArgs));
+        return args;
+    }
+
+    /**
+     * Answer the clues over HTTP until the process is stopped, the indexes and the model are loaded once
+     */
+    private static void startServer(List<TextProcessingOption> textProcessingOptions, boolean useBert) {
+        try {
+            Map<TextProcessingOption, JeopardyQuery> jeopardyQueries = new EnumMap<>(TextProcessingOption.class);
+            for (TextProcessingOption textProcessingOption : textProcessingOptions) {
+                jeopardyQueries.put(textProcessingOption, createJeopardyQuery(textProcessingOption));
+            }
+            JeopardyServer jeopardyServer = new JeopardyServer(serverPort, jeopardyQueries, textProcessingOptions.get(0),
+                    retrievalMode, useBert, maxConcurrentQueries);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                jeopardyServer.close();
+                IndexSearcherManager.closeAll();
+                IndexStorage.closeAll();
+                writeMetrics();
+            }));
+            jeopardyServer.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            IndexSearcherManager.closeAll();
+        }
+    }
+
+    /**
+     * Print the stages metrics and write the report if a path was given
+     */
+    private static void writeMetrics() {
+        Metrics.printSummary();
+        if (metricsReportPath == null) {
+            return;
+        }
+        try {
+            Metrics.writeReport(Paths.get(metricsReportPath));
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -43,34 +262,111 @@ public class Main {
      */
     private static void startQuery(TextProcessingOption textProcessingOption, boolean useBert) {
         try {
-            JeopardyQuery jeopardyQuery = new JeopardyQuery(Utils.JEOPARDY_QUESTIONS_PATH, textProcessingOption);
-            jeopardyQuery.startQuery(useBert);
+            createJeopardyQuery(textProcessingOption).startQuery(useBert, queryThreads);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compare the similarities and the field mixes of the default grid over the Jeopardy questions, for the specified index
+     */
+    private static void evaluateConfigurations(TextProcessingOption textProcessingOption) {
+        try {
+            createJeopardyQuery(textProcessingOption).evaluateConfigurations(SearchConfiguration.defaultGrid(), queryThreads);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Build the index with the specified text processing option
+     * Build the indexes with the specified text processing options, in a single pass over the Wikipedia pages.
+     * The indexes that are already built are skipped, unless they should be updated with the changed Wikipedia files.
      */
-    private static void buildIndex(TextProcessingOption textProcessingOption) {
-        String indexPath = Utils.getIndexPathBasedOnTextProcessingOption(textProcessingOption);
-        System.out.println("Start build index for: " + indexPath);
-        createFolder(Utils.INDEX_PATH);
-        createFolder(indexPath);
-        if (checkIfIndexIsAlreadyBuild(indexPath)) {
-            System.out.println("Index is already built!");
+    private static void buildIndexes(List<TextProcessingOption> textProcessingOptions) {
+        Map<TextProcessingOption, String> indexPaths = new EnumMap<>(TextProcessingOption.class);
+        createFolder(Utils.getIndexDirectoryPath());
+
+        for (TextProcessingOption textProcessingOption : textProcessingOptions) {
+            String indexPath = getIndexPath(textProcessingOption);
+            System.out.println("Start build index for: " + indexPath);
+            createFolder(indexPath);
+            if (checkIfIndexIsAlreadyBuild(indexPath) && !updateIndexes) {
+                System.out.println("Index is already built!");
+                continue;
+            }
+            indexPaths.put(textProcessingOption, indexPath);
+        }
+
+        if (indexPaths.isEmpty()) {
             return;
         }
 
         WikipediaIndexer wikipediaIndexer = new WikipediaIndexer(
-                Utils.WIKIPEDIA_DATASET_DIRECTORY_PATH,
-                indexPath,
-                textProcessingOption
+                Utils.getWikipediaDatasetDirectoryPath(),
+                indexPaths,
+                indexingThreads
         );
+        wikipediaIndexer.setIndexWriterTuning(indexWriterTuning);
+        wikipediaIndexer.setShards(shards);
+        wikipediaIndexer.setIndexPassages(indexPassages);
+        wikipediaIndexer.setEmbeddingStorePath(getEmbeddingStorePath());
+
+        if (indexEmbeddings) {
+            try (BertEmbeddingService embeddingService = BertEmbeddingService.load(0, null)) {
+                wikipediaIndexer.setEmbeddingService(embeddingService);
+                wikipediaIndexer.buildIndex();
+            }
+        } else {
+            wikipediaIndexer.buildIndex();
+        }
+        for (String indexPath : indexPaths.values()) {
+            System.out.println("End build index for: " + indexPath);
+        }
+
+        if (snapshotIndexes && IndexStorage.getMode() == IndexStorage.Mode.MEMORY) {
+            try {
+                IndexStorage.snapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-        wikipediaIndexer.buildIndex();
-        System.out.println("End build index for: " + indexPath);
+    private static JeopardyQuery createJeopardyQuery(TextProcessingOption textProcessingOption) throws IOException {
+        JeopardyQuery jeopardyQuery = new JeopardyQuery(jeopardyQuestionsPath, getIndexPath(textProcessingOption),
+                textProcessingOption, retrievalMode, rerankDepth);
+        jeopardyQuery.setSearchPassages(indexPassages);
+        jeopardyQuery.setEmbeddingStore(getEmbeddingStore());
+        return jeopardyQuery;
+    }
+
+    /**
+     * Open the embedding store once, it is shared by the queries of all the indexes.
+     * Return null if it is not used or was not built with the embeddings.
+     */
+    private static QuantizedEmbeddingStore getEmbeddingStore() throws IOException {
+        if (useEmbeddingStore && embeddingStore == null) {
+            embeddingStore = QuantizedEmbeddingStore.openIfExists(getEmbeddingStorePath());
+            if (embeddingStore == null) {
+                System.out.println("The embedding store is not built, build the index with embeddings: " + getEmbeddingStorePath());
+                useEmbeddingStore = false;
+            }
+        }
+        return embeddingStore;
+    }
+
+    private static Path getEmbeddingStorePath() {
+        return Paths.get(Utils.getEmbeddingStorePath(indexPassages));
+    }
+
+    /**
+     * Get the path of the pages index or of the passages index, built with the text processing option
+     */
+    private static String getIndexPath(TextProcessingOption textProcessingOption) {
+        return indexPassages
+                ? Utils.getPassagesIndexPath(textProcessingOption)
+                : Utils.getIndexPathBasedOnTextProcessingOption(textProcessingOption);
     }
 
     private static void createFolder(String indexPath) {
@@ -0,0 +1,149 @@
+package org.example;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide timers and counters for the indexing and query stages.
+ * They can be exported as a JSON or CSV report and exposed with JMX.
+ */
+public final class Metrics {
+
+    private static final String JMX_DOMAIN = "org.example";
+
+    private static final Map<String, StageTimer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static volatile boolean jmxEnabled = false;
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the timer of the stage, created on first use
+     */
+    public static StageTimer timer(String name) {
+        return timers.computeIfAbsent(name, timerName -> {
+            StageTimer timer = new StageTimer(timerName);
+            if (jmxEnabled) {
+                registerMBean(timer, "type=StageTimer,name=" + timerName);
+            }
+            return timer;
+        });
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long value) {
+        counters.computeIfAbsent(name, counterName -> new LongAdder()).add(value);
+    }
+
+    /**
+     * Expose the timers and the counters with JMX, including the ones created later
+     */
+    public static synchronized void enableJmx() {
+        if (jmxEnabled) {
+            return;
+        }
+        jmxEnabled = true;
+        for (StageTimer timer : timers.values()) {
+            registerMBean(timer, "type=StageTimer,name=" + timer.getName());
+        }
+        registerMBean((MetricsCountersMXBean) Metrics::getCounters, "type=Counters");
+    }
+
+    public static Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    /**
+     * Print the timers and the counters
+     */
+    public static void printSummary() {
+        System.out.println("Metrics (durations in microseconds):");
+        for (StageTimer timer : new TreeMap<>(timers).values()) {
+            System.out.println(timer.getName() + ": count: " + timer.getCount()
+                    + ", total ms: " + String.format("%.1f", timer.getTotalMillis())
+                    + ", mean: " + String.format("%.1f", timer.getMeanMicros())
+                    + ", p50: " + timer.getP50Micros() + ", p90: " + timer.getP90Micros()
+                    + ", p99: " + timer.getP99Micros() + ", max: " + timer.getMaxMicros());
+        }
+        getCounters().forEach((name, value) -> System.out.println(name + ": " + value));
+    }
+
+    /**
+     * Write the report as CSV if the file ends with .csv, as JSON otherwise
+     */
+    public static void writeReport(Path reportPath) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8))) {
+            if (reportPath.toString().toLowerCase().endsWith(".csv")) {
+                writeCsv(writer);
+            } else {
+                writeJson(writer);
+            }
+        }
+        System.out.println("Metrics report written to: " + reportPath);
+    }
+
+    private static void writeCsv(PrintWriter writer) {
+        writer.println("type,name,count,total_ms,mean_us,p50_us,p90_us,p99_us,max_us");
+        for (StageTimer timer : new TreeMap<>(timers).values()) {
+            writer.println("timer," + timer.getName() + "," + timer.getCount() + "," + timer.getTotalMillis() + ","
+                    + timer.getMeanMicros() + "," + timer.getP50Micros() + "," + timer.getP90Micros() + ","
+                    + timer.getP99Micros() + "," + timer.getMaxMicros());
+        }
+        getCounters().forEach((name, value) -> writer.println("counter," + name + "," + value + ",,,,,,"));
+    }
+
+    private static void writeJson(PrintWriter writer) {
+        writer.println("{");
+        writer.println("  \"timers\": {");
+        String separator = "";
+        for (StageTimer timer : new TreeMap<>(timers).values()) {
+            writer.print(separator);
+            writer.print("    \"" + timer.getName() + "\": {\"count\": " + timer.getCount()
+                    + ", \"totalMs\": " + timer.getTotalMillis() + ", \"meanUs\": " + timer.getMeanMicros()
+                    + ", \"p50Us\": " + timer.getP50Micros() + ", \"p90Us\": " + timer.getP90Micros()
+                    + ", \"p99Us\": " + timer.getP99Micros() + ", \"maxUs\": " + timer.getMaxMicros() + "}");
+            separator = ",\n";
+        }
+        writer.println();
+        writer.println("  },");
+        writer.println("  \"counters\": {");
+        separator = "";
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            writer.print(separator);
+            writer.print("    \"" + counter.getKey() + "\": " + counter.getValue());
+            separator = ",\n";
+        }
+        writer.println();
+        writer.println("  }");
+        writer.println("}");
+    }
+
+    private static void registerMBean(Object mBean, String properties) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":" + properties);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(mBean, objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.example;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics counters
+ */
+public interface MetricsCountersMXBean {
+    Map<String, Long> getCounters();
+}
@@ -0,0 +1,425 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Read-only store of the documents embeddings, quantized to one byte per dimension and memory-mapped,
+ * so the embeddings of the whole corpus stay off the heap. The documents are found by title, or title#number for a passage.
+ * <p>
+ * The file starts with a header (magic, dimension, count, offset of the keys), followed by one record per document:
+ * the norm of the quantized vector as a float, then the quantized values. The keys are written at the end.
+ * The cosine similarity is scale invariant, so the per-vector quantization scale does not need to be stored.
+ */
+public class QuantizedEmbeddingStore {
+
+    private static final int MAGIC = 0x51454D42;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    private static final long MAX_MAPPED_REGION_SIZE = Integer.MAX_VALUE;
+    private static final float MAX_QUANTIZED_VALUE = 127f;
+
+    private final int dimension;
+    private final int count;
+    private final int recordSize;
+    private final int recordsPerRegion;
+    private final MappedByteBuffer[] regions;
+    private final Map<String, Integer> ordinals;
+
+    private QuantizedEmbeddingStore(int dimension, int count, MappedByteBuffer[] regions, Map<String, Integer> ordinals) {
+        this.dimension = dimension;
+        this.count = count;
+        this.recordSize = Float.BYTES + dimension;
+        this.recordsPerRegion = (int) (MAX_MAPPED_REGION_SIZE / recordSize);
+        this.regions = regions;
+        this.ordinals = ordinals;
+    }
+
+    /**
+     * Open the store, or return null if the file does not exist
+     */
+    public static QuantizedEmbeddingStore openIfExists(Path path) throws IOException {
+        return Files.isRegularFile(path) ? open(path) : null;
+    }
+
+    public static QuantizedEmbeddingStore open(Path path) throws IOException {
+        StoreKeys storeKeys = readKeys(path);
+        int dimension = storeKeys.dimension();
+        int count = storeKeys.count();
+        Map<String, Integer> ordinals = storeKeys.ordinals();
+
+        // The records are mapped in regions that hold a whole number of records
+        int recordSize = Float.BYTES + dimension;
+        int recordsPerRegion = (int) (MAX_MAPPED_REGION_SIZE / recordSize);
+        MappedByteBuffer[] regions = new MappedByteBuffer[(count + recordsPerRegion - 1) / recordsPerRegion];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < regions.length; i++) {
+                int regionRecords = Math.min(recordsPerRegion, count - i * recordsPerRegion);
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) i * recordsPerRegion * recordSize, (long) regionRecords * recordSize);
+                regions[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        System.out.println("Opened " + ordinals.size() + " quantized embeddings of dimension " + dimension + " from: " + path);
+        return new QuantizedEmbeddingStore(dimension, count, regions, ordinals);
+    }
+
+    /**
+     * Read the header and the keys of the store, with the ordinal of the last record of each key
+     */
+    private static StoreKeys readKeys(Path path) throws IOException {
+        Map<String, Integer> ordinals = new HashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not an embedding store: " + path);
+            }
+            int dimension = input.readInt();
+            int count = input.readInt();
+            long keysOffset = input.readLong();
+
+            input.skipNBytes(keysOffset - HEADER_SIZE);
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                // A key written again by an update replaces the previous record
+                ordinals.put(input.readUTF(), ordinal);
+            }
+            return new StoreKeys(dimension, count, ordinals);
+        }
+    }
+
+    private record StoreKeys(int dimension, int count, Map<String, Integer> ordinals) {
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Get the ordinal of the document embedding, or -1 if it is not stored
+     */
+    public int getOrdinal(String key) {
+        Integer ordinal = ordinals.get(key);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Calculate the cosine similarity of the query with a stored embedding, directly over the mapped bytes
+     */
+    public float cosineSimilarity(float[] query, int ordinal) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Vector dimensions must be the same");
+        }
+
+        ByteBuffer region = regions[ordinal / recordsPerRegion];
+        int offset = (ordinal % recordsPerRegion) * recordSize;
+        float norm = region.getFloat(offset);
+        offset += Float.BYTES;
+
+        // Independent accumulators, so the additions of the loop do not wait for each other
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        float queryNorm0 = 0, queryNorm1 = 0, queryNorm2 = 0, queryNorm3 = 0;
+        int i = 0;
+        for (int bound = dimension & ~3; i < bound; i += 4) {
+            sum0 += query[i] * region.get(offset + i);
+            sum1 += query[i + 1] * region.get(offset + i + 1);
+            sum2 += query[i + 2] * region.get(offset + i + 2);
+            sum3 += query[i + 3] * region.get(offset + i + 3);
+            queryNorm0 += query[i] * query[i];
+            queryNorm1 += query[i + 1] * query[i + 1];
+            queryNorm2 += query[i + 2] * query[i + 2];
+            queryNorm3 += query[i + 3] * query[i + 3];
+        }
+        for (; i < dimension; i++) {
+            sum0 += query[i] * region.get(offset + i);
+            queryNorm0 += query[i] * query[i];
+        }
+
+        double denominator = Math.sqrt(queryNorm0 + queryNorm1 + queryNorm2 + queryNorm3) * norm;
+        if (denominator == 0) {
+            return 0.0f; // One of the vectors is zero
+        }
+        return (float) ((sum0 + sum1 + sum2 + sum3) / denominator);
+    }
+
+    /**
+     * Write a store, the embeddings can be added by several threads. The file is replaced when the writer is finished.
+     * <p>
+     * The records and the keys are appended to temporary files. A checkpoint flushes them and is recorded with each
+     * index commit, so a build interrupted after a commit continues the temporary files from the last checkpoint
+     * and the store has the embeddings of all the committed pages.
+     */
+    public static class Writer {
+
+        private static final String CHECKPOINT_SEPARATOR = ":";
+
+        private final Path path;
+        private final Path temporaryPath;
+        private final Path keysPath;
+        private final boolean keepExisting;
+        private FileOutputStream recordsFile;
+        private FileOutputStream keysFile;
+        private DataOutputStream records;
+        private DataOutputStream keys;
+        // Identifies the temporary files of a build, written in the header until the writer is finished
+        private long generation;
+        // Set by the existing store or the first embedding added
+        private int dimension = 0;
+        private ByteBuffer recordBuffer;
+        private int count = 0;
+        // The temporary files are kept for the next build once they are referenced by a commit
+        private boolean checkpointed = false;
+        private boolean finished = false;
+
+        /**
+         * Create the writer, the files are opened by start
+         * @param keepExisting copy the embeddings of the existing store, the embeddings added later replace them
+         */
+        public Writer(Path path, boolean keepExisting) {
+            this.path = path;
+            this.temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+            this.keysPath = path.resolveSibling(path.getFileName() + ".keys.tmp");
+            this.keepExisting = keepExisting;
+        }
+
+        /**
+         * Open the temporary files. When the checkpoint matches the temporary files of an interrupted build, they are
+         * truncated to the checkpoint and continued, otherwise a new store is started.
+         * @param checkpoint the checkpoint recorded with the last index commit, or null
+         */
+        public synchronized void start(String checkpoint) throws IOException {
+            try {
+                if (checkpoint == null || !resume(checkpoint)) {
+                    startNew();
+                }
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        private void startNew() throws IOException {
+            generation = ThreadLocalRandom.current().nextLong();
+            openStreams(false);
+            // Written again with the count and the keys offset when the writer is finished
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(0, generation);
+            records.write(header.array());
+
+            if (keepExisting && Files.isRegularFile(path)) {
+                copyExisting();
+            }
+        }
+
+        /**
+         * Continue the temporary files from the checkpoint, return false if they are missing or from another build
+         */
+        private boolean resume(String checkpoint) throws IOException {
+            String[] parts = checkpoint.split(CHECKPOINT_SEPARATOR);
+            if (parts.length != 5 || !Files.isRegularFile(temporaryPath) || !Files.isRegularFile(keysPath)) {
+                return false;
+            }
+            long checkpointGeneration;
+            int checkpointCount;
+            int checkpointDimension;
+            long recordsLength;
+            long keysLength;
+            try {
+                checkpointGeneration = Long.parseLong(parts[0]);
+                checkpointCount = Integer.parseInt(parts[1]);
+                checkpointDimension = Integer.parseInt(parts[2]);
+                recordsLength = Long.parseLong(parts[3]);
+                keysLength = Long.parseLong(parts[4]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (recordsLength < HEADER_SIZE || Files.size(temporaryPath) < recordsLength || Files.size(keysPath) < keysLength) {
+                return false;
+            }
+            try (DataInputStream input = new DataInputStream(Files.newInputStream(temporaryPath))) {
+                if (input.readLong() != checkpointGeneration) {
+                    return false;
+                }
+            }
+
+            // The files are referenced by a commit from here, they are not deleted if the writer is aborted
+            checkpointed = true;
+            // Drop what was added after the checkpoint, those pages are indexed again
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+                channel.truncate(recordsLength);
+            }
+            try (FileChannel channel = FileChannel.open(keysPath, StandardOpenOption.WRITE)) {
+                channel.truncate(keysLength);
+            }
+
+            generation = checkpointGeneration;
+            count = checkpointCount;
+            dimension = checkpointDimension;
+            if (dimension > 0) {
+                recordBuffer = ByteBuffer.allocate(Float.BYTES + dimension).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            openStreams(true);
+            System.out.println("Resumed " + count + " quantized embeddings from the last commit: " + path);
+            return true;
+        }
+
+        private void openStreams(boolean append) throws IOException {
+            recordsFile = new FileOutputStream(temporaryPath.toFile(), append);
+            records = new DataOutputStream(new BufferedOutputStream(recordsFile));
+            keysFile = new FileOutputStream(keysPath.toFile(), append);
+            keys = new DataOutputStream(new BufferedOutputStream(keysFile));
+        }
+
+        /**
+         * Write the added embeddings to disk and return the state to record with the next index commit
+         */
+        public synchronized String checkpoint() throws IOException {
+            records.flush();
+            keys.flush();
+            recordsFile.getFD().sync();
+            keysFile.getFD().sync();
+            checkpointed = true;
+            return String.join(CHECKPOINT_SEPARATOR, Long.toString(generation), Integer.toString(count), Integer.toString(dimension),
+                    Long.toString(recordsFile.getChannel().position()), Long.toString(keysFile.getChannel().position()));
+        }
+
+        /**
+         * Quantize the embedding with a scale for each vector, so its largest value is 127
+         */
+        public synchronized void add(String key, float[] embedding) throws IOException {
+            if (recordBuffer == null) {
+                dimension = embedding.length;
+                recordBuffer = ByteBuffer.allocate(Float.BYTES + dimension).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (embedding.length != dimension) {
+                throw new IllegalArgumentException("Vector dimensions must be the same");
+            }
+
+            float maxAbsoluteValue = 0;
+            for (float value : embedding) {
+                maxAbsoluteValue = Math.max(maxAbsoluteValue, Math.abs(value));
+            }
+            float scale = maxAbsoluteValue == 0 ? 0 : MAX_QUANTIZED_VALUE / maxAbsoluteValue;
+
+            recordBuffer.clear();
+            recordBuffer.position(Float.BYTES);
+            long squaredNorm = 0;
+            for (float value : embedding) {
+                byte quantized = (byte) Math.round(value * scale);
+                squaredNorm += quantized * quantized;
+                recordBuffer.put(quantized);
+            }
+            recordBuffer.putFloat(0, (float) Math.sqrt(squaredNorm));
+
+            records.write(recordBuffer.array(), 0, recordBuffer.capacity());
+            keys.writeUTF(key);
+            count += 1;
+        }
+
+        /**
+         * Write the keys and the header, then replace the store file
+         */
+        public synchronized void finish() throws IOException {
+            closeStreams();
+            long keysOffset = Files.size(temporaryPath);
+
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                 FileChannel keysChannel = FileChannel.open(keysPath, StandardOpenOption.READ)) {
+                long position = 0;
+                long size = keysChannel.size();
+                while (position < size) {
+                    position += keysChannel.transferTo(position, size - position, channel);
+                }
+            }
+
+            try (RandomAccessFile file = new RandomAccessFile(temporaryPath.toFile(), "rw")) {
+                file.writeInt(MAGIC);
+                file.writeInt(dimension);
+                file.writeInt(count);
+                file.writeLong(keysOffset);
+            }
+
+            Files.delete(keysPath);
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+            System.out.println("Wrote " + count + " quantized embeddings to: " + path);
+        }
+
+        /**
+         * Close the temporary files and keep the existing store, nothing is done if the writer is finished.
+         * The temporary files are kept for the next build after a checkpoint, otherwise they are deleted.
+         */
+        public synchronized void abort() {
+            if (finished) {
+                return;
+            }
+            try {
+                closeStreams();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (checkpointed) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(temporaryPath);
+                Files.deleteIfExists(keysPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void closeStreams() throws IOException {
+            try {
+                if (records != null) {
+                    records.close();
+                }
+            } finally {
+                if (keys != null) {
+                    keys.close();
+                }
+            }
+        }
+
+        /**
+         * Copy the last record of each key of the existing store. The store is read sequentially instead of mapped,
+         * so nothing keeps the file open until it is replaced.
+         */
+        private void copyExisting() throws IOException {
+            StoreKeys existing = readKeys(path);
+            dimension = existing.dimension();
+            recordBuffer = ByteBuffer.allocate(Float.BYTES + dimension).order(ByteOrder.LITTLE_ENDIAN);
+
+            String[] keysByOrdinal = new String[existing.count()];
+            existing.ordinals().forEach((key, ordinal) -> keysByOrdinal[ordinal] = key);
+            byte[] record = new byte[recordBuffer.capacity()];
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                input.skipNBytes(HEADER_SIZE);
+                for (String key : keysByOrdinal) {
+                    input.readFully(record);
+                    // Only the last record of a key is used
+                    if (key != null) {
+                        records.write(record);
+                        keys.writeUTF(key);
+                        count += 1;
+                    }
+                }
+            }
+        }
+    }
+
+}
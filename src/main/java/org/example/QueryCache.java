@@ -0,0 +1,78 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache for the query processing and search results, shared by the query threads.
+ * Each value is tied to a generation (e.g. the index version): a value from another generation or older than
+ * the time to live is a miss and is removed.
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class QueryCache<K, V> {
+
+    private final long timeToLiveNanos;
+    private final Map<K, CachedValue<V>> values;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public QueryCache(int maxSize, Duration timeToLive) {
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.values = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the value cached for the key in the generation, or null
+     */
+    public V get(K key, long generation) {
+        synchronized (values) {
+            CachedValue<V> cachedValue = values.get(key);
+            if (cachedValue != null && cachedValue.generation() == generation
+                    && System.nanoTime() - cachedValue.createdNanos() <= timeToLiveNanos) {
+                hits.increment();
+                return cachedValue.value();
+            }
+
+            if (cachedValue != null) {
+                values.remove(key);
+                evictions.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(K key, long generation, V value) {
+        synchronized (values) {
+            values.put(key, new CachedValue<>(value, generation, System.nanoTime()));
+        }
+    }
+
+    public String getStatistics() {
+        long hitsCount = hits.sum();
+        long requests = hitsCount + misses.sum();
+        int size;
+        synchronized (values) {
+            size = values.size();
+        }
+        return "hits: " + hitsCount + ", misses: " + misses.sum()
+                + ", hit rate: " + String.format("%.2f", requests == 0 ? 0.0 : hitsCount / (double) requests)
+                + ", evictions: " + evictions.sum() + ", size: " + size;
+    }
+
+    private record CachedValue<V>(V value, long generation, long createdNanos) {
+    }
+}
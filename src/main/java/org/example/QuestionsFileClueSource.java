@@ -0,0 +1,38 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Read the clues of a questions file, each one is written on 4 lines: category, clue, answer and an empty line
+ */
+public class QuestionsFileClueSource implements ClueSource {
+
+    private final BufferedReader reader;
+
+    public QuestionsFileClueSource(Path path) throws IOException {
+        this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public JeopardyClue next() throws IOException {
+        String category = reader.readLine();
+        String clue = reader.readLine();
+        String answer = reader.readLine();
+        if (category == null || clue == null || answer == null) {
+            return null;
+        }
+
+        // Skip the empty line between the clues
+        reader.readLine();
+        return new JeopardyClue(category.trim(), clue.trim(), answer.trim());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
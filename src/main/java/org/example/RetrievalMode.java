@@ -0,0 +1,13 @@
+package org.example;
+
+/**
+ * Enum to represent how the documents are retrieved for a query
+ */
+public enum RetrievalMode {
+    // Text query over the content field
+    TEXT,
+    // Nearest neighbours of the query embedding over the documents embeddings
+    VECTOR,
+    // Text and vector results fused with the reciprocal rank fusion
+    HYBRID
+}
@@ -0,0 +1,64 @@
+package org.example;
+
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.LMDirichletSimilarity;
+import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A way of scoring the clues, compared by the similarity sweep: the similarity and the boost of each searched field
+ *
+ * @param fieldBoosts the boost of each field, the clue matches any of them
+ */
+public record SearchConfiguration(String name, Similarity similarity, Map<String, Float> fieldBoosts) {
+
+    private static final float CATEGORIES_BOOST = 0.5f;
+    private static final float TITLE_BOOST = 2.0f;
+
+    /**
+     * Every similarity of the grid combined with every field mix. The mixes with the title need an index
+     * built with the tokenized title, they are skipped on older indexes.
+     */
+    public static List<SearchConfiguration> defaultGrid() {
+        Map<String, Similarity> similarities = new LinkedHashMap<>();
+        for (float mu : new float[]{500, 1000, 2000, 3000}) {
+            similarities.put("LMDirichlet(mu=" + (int) mu + ")", new LMDirichletSimilarity(mu));
+        }
+        for (float lambda : new float[]{0.1f, 0.7f}) {
+            similarities.put("LMJelinekMercer(lambda=" + lambda + ")", new LMJelinekMercerSimilarity(lambda));
+        }
+        for (float[] parameters : new float[][]{{1.2f, 0.75f}, {0.9f, 0.4f}, {1.5f, 0.9f}}) {
+            similarities.put("BM25(k1=" + parameters[0] + ",b=" + parameters[1] + ")", new BM25Similarity(parameters[0], parameters[1]));
+        }
+        similarities.put("Classic", new ClassicSimilarity());
+
+        Map<String, Map<String, Float>> fieldMixes = new LinkedHashMap<>();
+        fieldMixes.put("content", Map.of("content", 1.0f));
+        fieldMixes.put("content+categories", orderedBoosts("content", 1.0f, "categories", CATEGORIES_BOOST));
+        Map<String, Float> titleMix = orderedBoosts("content", 1.0f, "categories", CATEGORIES_BOOST);
+        titleMix.put(WikipediaIndexer.TITLE_TEXT_FIELD, TITLE_BOOST);
+        fieldMixes.put("content+categories+title^" + TITLE_BOOST, titleMix);
+
+        List<SearchConfiguration> configurations = new ArrayList<>();
+        for (Map.Entry<String, Similarity> similarity : similarities.entrySet()) {
+            for (Map.Entry<String, Map<String, Float>> fieldMix : fieldMixes.entrySet()) {
+                configurations.add(new SearchConfiguration(similarity.getKey() + " " + fieldMix.getKey(),
+                        similarity.getValue(), fieldMix.getValue()));
+            }
+        }
+        return configurations;
+    }
+
+    private static Map<String, Float> orderedBoosts(String field1, float boost1, String field2, float boost2) {
+        Map<String, Float> boosts = new LinkedHashMap<>();
+        boosts.put(field1, boost1);
+        boosts.put(field2, boost2);
+        return boosts;
+    }
+}
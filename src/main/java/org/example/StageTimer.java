@@ -0,0 +1,70 @@
+package org.example;
+
+import org.HdrHistogram.ConcurrentHistogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record the durations of a processing stage in a HdrHistogram, safe to use from several threads
+ */
+public class StageTimer implements StageTimerMBean {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final String name;
+    private final ConcurrentHistogram histogram = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+
+    public StageTimer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        histogram.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    /**
+     * Record the time elapsed since the start, taken with System.nanoTime
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getTotalCount();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return histogram.getMean() * histogram.getTotalCount() / 1000.0;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return histogram.getMean();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return histogram.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP90Micros() {
+        return histogram.getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return histogram.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return histogram.getMaxValue();
+    }
+}
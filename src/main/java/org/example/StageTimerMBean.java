@@ -0,0 +1,20 @@
+package org.example;
+
+/**
+ * JMX view of a stage timer, the durations are in microseconds
+ */
+public interface StageTimerMBean {
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+}
@@ -0,0 +1,44 @@
+package org.example;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+
+/**
+ * Lucene analyzer that applies a text processing option while the text is tokenized,
+ * used both at index and at query time
+ */
+public class TextProcessingAnalyzer extends Analyzer {
+
+    private final TextProcessingOption textProcessingOption;
+
+    public TextProcessingAnalyzer(TextProcessingOption textProcessingOption) {
+        this.textProcessingOption = textProcessingOption;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+        StandardTokenizer tokenizer = new StandardTokenizer();
+        TokenStream tokenStream = new LowerCaseFilter(tokenizer);
+
+        if (textProcessingOption == TextProcessingOption.STOP_WORDS
+                || textProcessingOption == TextProcessingOption.STOP_WORDS_STEMMING) {
+            tokenStream = new StopFilter(tokenStream, EnglishAnalyzer.getDefaultStopSet());
+        }
+        if (textProcessingOption == TextProcessingOption.STEMMING
+                || textProcessingOption == TextProcessingOption.STOP_WORDS_STEMMING) {
+            tokenStream = new PorterStemFilter(tokenStream);
+        }
+
+        return new TokenStreamComponents(tokenizer, tokenStream);
+    }
+
+    @Override
+    protected TokenStream normalize(String fieldName, TokenStream in) {
+        return new LowerCaseFilter(in);
+    }
+}
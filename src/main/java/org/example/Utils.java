@@ -1,100 +1,169 @@
 package org.example;
 
-import edu.stanford.nlp.simple.Sentence;
-import org.apache.lucene.analysis.CharArraySet;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.tartarus.snowball.ext.PorterStemmer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
 
 public final class Utils {
-    private static final CharArraySet stopWords = EnglishAnalyzer.getDefaultStopSet();
+    private static final Map<TextProcessingOption, Analyzer> analyzers = new EnumMap<>(TextProcessingOption.class);
 
-    private static final String INDEX_PATH_NONE = "src\\main\\resources\\Index\\IndexNONE";
-    private static final String INDEX_PATH_STOP_WORDS = "src\\main\\resources\\Index\\IndexSTOPWORDS";
-    private static final String INDEX_PATH_STEMMING = "src\\main\\resources\\Index\\IndexSTEMMING";
-    private static final String INDEX_PATH_STOP_WORDS_STEMMING = "src\\main\\resources\\Index\\IndexSTOPWORDSSTEMMING";
-    private static final String INDEX_PATH_LEMMATIZATION = "src\\main\\resources\\Index\\IndexLEMMATIZATION";
+    static {
+        for (TextProcessingOption textProcessingOption : TextProcessingOption.values()) {
+            analyzers.put(textProcessingOption, new TextProcessingAnalyzer(textProcessingOption));
+        }
+    }
+
+    private static final String INDEX_FOLDER_NONE = "IndexNONE";
+    private static final String INDEX_FOLDER_STOP_WORDS = "IndexSTOPWORDS";
+    private static final String INDEX_FOLDER_STEMMING = "IndexSTEMMING";
+    private static final String INDEX_FOLDER_STOP_WORDS_STEMMING = "IndexSTOPWORDSSTEMMING";
+    private static final String INDEX_FOLDER_LEMMATIZATION = "IndexLEMMATIZATION";
+    private static final String PASSAGES_INDEX_PATH_SUFFIX = "Passages";
+    private static final String BERT_EMBEDDINGS_CACHE_FILE = "bertEmbeddings.bin";
+    private static final String EMBEDDING_STORE_FILE = "embeddingsInt8.bin";
+    private static final String PASSAGES_EMBEDDING_STORE_FILE = "passageEmbeddingsInt8.bin";
+
+    public static final String JEOPARDY_QUESTIONS_PATH = Paths.get("src", "main", "resources", "Jeopardy", "questions.txt").toString();
+
+    // The folder of the indexes and of the embeddings files, and the folder of the Wikipedia pages, relative to the working directory by default
+    private static volatile String indexDirectoryPath = Paths.get("src", "main", "resources", "Index").toString();
+    private static volatile String wikipediaDatasetDirectoryPath = Paths.get("src", "main", "resources", "WikiPages").toString();
 
-    public static final String INDEX_PATH = "src\\main\\resources\\Index";
-    public static final String WIKIPEDIA_DATASET_DIRECTORY_PATH = "src\\main\\resources\\WikiPages";
-    public static final String JEOPARDY_QUESTIONS_PATH = "src\\main\\resources\\Jeopardy\\questions.txt";
+    public static String getIndexDirectoryPath() {
+        return indexDirectoryPath;
+    }
+
+    public static void setIndexDirectoryPath(String indexDirectoryPath) {
+        Utils.indexDirectoryPath = indexDirectoryPath;
+    }
+
+    public static String getWikipediaDatasetDirectoryPath() {
+        return wikipediaDatasetDirectoryPath;
+    }
 
+    public static void setWikipediaDatasetDirectoryPath(String wikipediaDatasetDirectoryPath) {
+        Utils.wikipediaDatasetDirectoryPath = wikipediaDatasetDirectoryPath;
+    }
+
+    public static String getBertEmbeddingsCachePath() {
+        return Paths.get(indexDirectoryPath, BERT_EMBEDDINGS_CACHE_FILE).toString();
+    }
+
+    /**
+     * Get the path of the quantized embeddings of the pages or of the passages
+     */
+    public static String getEmbeddingStorePath(boolean passages) {
+        return Paths.get(indexDirectoryPath, passages ? PASSAGES_EMBEDDING_STORE_FILE : EMBEDDING_STORE_FILE).toString();
+    }
+
+    /**
+     * Apply the text processing that has to happen before the Lucene analyzer.
+     * Stop words removal and stemming are done by the analyzer of the option, so only lemmatization changes the text.
+     */
     public static String applyTextProcessing(String inputText, TextProcessingOption textProcessingOption) {
-        switch (textProcessingOption) {
-            case NONE -> {
-                return inputText;
-            }
-            case STOP_WORDS -> {
-                return Utils.removeStopWords(inputText);
-            }
-            case STEMMING -> {
-                return Utils.stemText(inputText);
-            }
-            case LEMMATIZATION -> {
-                return Utils.lemmatizeText(inputText);
-            }
-            case STOP_WORDS_STEMMING -> {
-                return Utils.removeStopWordsAndStemText(inputText);
-            }
+        if (textProcessingOption == TextProcessingOption.LEMMATIZATION) {
+            return Utils.lemmatizeText(inputText);
         }
         return inputText;
     }
 
-    public static String removeStopWords(String inputText) {
-        return String.join(" ", removeStopWords(new Sentence(inputText).words()));
+    /**
+     * Apply the text processing to a batch of texts, the lemmatization of the batch is done in parallel
+     */
+    public static List<String> applyTextProcessing(List<String> inputTexts, TextProcessingOption textProcessingOption) {
+        if (textProcessingOption == TextProcessingOption.LEMMATIZATION) {
+            return Lemmatizer.getInstance().lemmatize(inputTexts);
+        }
+        return inputTexts;
     }
 
-    public static String stemText(String inputText) {
-        PorterStemmer stemmer = new PorterStemmer();
-        return String.join(" ", stemWords(stemmer, new Sentence(inputText).words()));
+    /**
+     * Apply several text processing options to the same text, lemmatizing it at most once
+     */
+    public static Map<TextProcessingOption, String> applyTextProcessing(String inputText, Set<TextProcessingOption> textProcessingOptions) {
+        Map<TextProcessingOption, String> processedTexts = new EnumMap<>(TextProcessingOption.class);
+        for (TextProcessingOption textProcessingOption : textProcessingOptions) {
+            processedTexts.put(textProcessingOption, applyTextProcessing(inputText, textProcessingOption));
+        }
+        return processedTexts;
     }
 
-    public static String lemmatizeText(String inputText) {
-        return String.join(" ", new Sentence(inputText).lemmas());
+    /**
+     * Get the analyzer that matches the text processing option, shared between threads
+     */
+    public static Analyzer getAnalyzer(TextProcessingOption textProcessingOption) {
+        return analyzers.get(textProcessingOption);
     }
 
-    public static String removeStopWordsAndStemText(String inputText) {
-        PorterStemmer stemmer = new PorterStemmer();
-        return String.join(" ", stemWords(stemmer, removeStopWords(new Sentence(inputText).words())));
+    /**
+     * Get the analyzer for the index documents: the content is analyzed based on the text processing option
+     */
+    public static Analyzer getIndexAnalyzer(TextProcessingOption textProcessingOption) {
+        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), Map.of("content", getAnalyzer(textProcessingOption)));
     }
 
-    public static List<String> removeStopWords(List<String> words) {
-        return words.stream()
-                .map(String::toLowerCase)
-                .filter(word -> !stopWords.contains(word))
-                .collect(Collectors.toList());
+    /**
+     * Get the terms that are indexed for the text with the specified text processing option
+     */
+    public static List<String> analyzeText(String inputText, TextProcessingOption textProcessingOption) {
+        List<String> terms = new ArrayList<>();
+        String processedText = applyTextProcessing(inputText, textProcessingOption);
+
+        try (TokenStream tokenStream = getAnalyzer(textProcessingOption).tokenStream("content", processedText)) {
+            CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                terms.add(termAttribute.toString());
+            }
+            tokenStream.end();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return terms;
     }
 
-    public static List<String> stemWords(PorterStemmer stemmer, List<String> words) {
-        return words.stream()
-                .map(word -> stemWord(stemmer, word))
-                .collect(Collectors.toList());
+    public static String lemmatizeText(String inputText) {
+        return Lemmatizer.getInstance().lemmatize(inputText);
     }
 
-    public static String stemWord(PorterStemmer stemmer, String word) {
-        stemmer.setCurrent(word);
-        stemmer.stem();
-        return stemmer.getCurrent();
+    /**
+     * Get the path of the index of the pages passages, built with the specified text processing option
+     */
+    public static String getPassagesIndexPath(TextProcessingOption textProcessingOption) {
+        return getIndexPathBasedOnTextProcessingOption(textProcessingOption) + PASSAGES_INDEX_PATH_SUFFIX;
     }
 
     public static String getIndexPathBasedOnTextProcessingOption(TextProcessingOption textProcessingOption) {
+        return Paths.get(indexDirectoryPath, getIndexFolder(textProcessingOption)).toString();
+    }
+
+    private static String getIndexFolder(TextProcessingOption textProcessingOption) {
         switch (textProcessingOption) {
             case NONE -> {
-                return INDEX_PATH_NONE;
+                return INDEX_FOLDER_NONE;
             }
             case STOP_WORDS -> {
-                return INDEX_PATH_STOP_WORDS;
+                return INDEX_FOLDER_STOP_WORDS;
             }
             case STEMMING -> {
-                return INDEX_PATH_STEMMING;
+                return INDEX_FOLDER_STEMMING;
             }
             case LEMMATIZATION -> {
-                return INDEX_PATH_LEMMATIZATION;
+                return INDEX_FOLDER_LEMMATIZATION;
             }
             case STOP_WORDS_STEMMING -> {
-                return INDEX_PATH_STOP_WORDS_STEMMING;
+                return INDEX_FOLDER_STOP_WORDS_STEMMING;
             }
         }
         return "";
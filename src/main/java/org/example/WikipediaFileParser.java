@@ -0,0 +1,210 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Parse the pages of a Wikipedia file by scanning the lines directly in the memory-mapped UTF-8 bytes.
+ * Only the text of the pages is decoded, into buffers reused between lines, so no string is created for each line.
+ * The parser keeps the buffers between files and must be used by a single thread.
+ */
+public class WikipediaFileParser {
+
+    private static final byte[] CATEGORIES_LINE_START = "CATEGORIES:".getBytes(StandardCharsets.UTF_8);
+    private static final long MAX_MAPPED_REGION_SIZE = Integer.MAX_VALUE;
+    private static final int INITIAL_CONTENT_CAPACITY = 1 << 16;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder documentContent = new StringBuilder(INITIAL_CONTENT_CAPACITY);
+    private CharBuffer lineChars = CharBuffer.allocate(1024);
+    private int[] sectionStarts = new int[16];
+    private int sectionsCount;
+
+    private String documentTitle;
+    private String documentCategories;
+    private boolean isFirstContentLine;
+
+    /**
+     * Parse a Wikipedia file based on its structure, each page is given to the consumer
+     */
+    public void parse(File wikipediaFile, Consumer<WikipediaPage> pageConsumer) throws IOException {
+        documentTitle = "";
+        documentCategories = "";
+        resetContent();
+
+        try (FileChannel channel = FileChannel.open(wikipediaFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+
+            // Files bigger than a mapped region are mapped in regions that end with a complete line
+            while (position < fileSize) {
+                long regionSize = Math.min(MAX_MAPPED_REGION_SIZE, fileSize - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+
+                int regionEnd = (int) regionSize;
+                if (position + regionSize < fileSize) {
+                    regionEnd = lastIndexOfNewLine(region, regionEnd) + 1;
+                    if (regionEnd == 0) {
+                        throw new IOException("Line longer than " + MAX_MAPPED_REGION_SIZE + " bytes in: " + wikipediaFile);
+                    }
+                }
+
+                parseLines(region, regionEnd, wikipediaFile.getName(), pageConsumer);
+                position += regionEnd;
+            }
+        }
+
+        addPage(wikipediaFile.getName(), pageConsumer);
+    }
+
+    private void parseLines(ByteBuffer region, int regionEnd, String sourceFile, Consumer<WikipediaPage> pageConsumer) {
+        ByteBuffer lineBytes = region.duplicate();
+        int lineStart = 0;
+
+        while (lineStart < regionEnd) {
+            int lineEnd = indexOfNewLine(region, lineStart, regionEnd);
+            int nextLineStart = lineEnd + 1;
+            if (lineEnd > lineStart && region.get(lineEnd - 1) == '\r') {
+                lineEnd -= 1;
+            }
+
+            if (isTitleLine(region, lineStart, lineEnd)) {
+                addPage(sourceFile, pageConsumer);
+                documentTitle = decode(lineBytes, lineStart + 2, lineEnd - 2).toString();
+                documentCategories = "";
+            } else if (isCategoriesLine(region, lineStart, lineEnd)) {
+                int categoriesStart = Math.min(lineStart + CATEGORIES_LINE_START.length + 1, lineEnd);
+                documentCategories = decode(lineBytes, categoriesStart, lineEnd).toString().trim();
+            } else {
+                appendContentLine(decode(lineBytes, lineStart, lineEnd), isHeaderLine(region, lineStart, lineEnd));
+            }
+
+            lineStart = nextLineStart;
+        }
+    }
+
+    private void addPage(String sourceFile, Consumer<WikipediaPage> pageConsumer) {
+        if (!documentTitle.isEmpty()) {
+            pageConsumer.accept(new WikipediaPage(documentTitle, documentCategories, documentContent.toString(), sourceFile,
+                    Arrays.copyOf(sectionStarts, sectionsCount)));
+        }
+        resetContent();
+    }
+
+    private void resetContent() {
+        documentContent.setLength(0);
+        sectionsCount = 0;
+        isFirstContentLine = true;
+    }
+
+    /**
+     * Append the line to the page content, the lines are separated by spaces and the headers markup is removed.
+     * The offset of each header is kept, it starts a new section of the page.
+     */
+    private void appendContentLine(CharBuffer line, boolean isHeader) {
+        if (!isFirstContentLine) {
+            documentContent.append(' ');
+        }
+        isFirstContentLine = false;
+
+        if (!isHeader) {
+            documentContent.append(line);
+            return;
+        }
+
+        if (sectionsCount == sectionStarts.length) {
+            sectionStarts = Arrays.copyOf(sectionStarts, sectionsCount * 2);
+        }
+        sectionStarts[sectionsCount++] = documentContent.length();
+
+        while (line.hasRemaining()) {
+            char c = line.get();
+            if (c != '=') {
+                documentContent.append(c);
+            }
+        }
+    }
+
+    /**
+     * Decode the bytes of a line into the reused char buffer
+     */
+    private CharBuffer decode(ByteBuffer lineBytes, int start, int end) {
+        int length = end - start;
+        // UTF-8 never produces more chars than bytes
+        if (lineChars.capacity() < length) {
+            lineChars = CharBuffer.allocate(Math.max(length, lineChars.capacity() * 2));
+        }
+
+        lineBytes.clear();
+        lineBytes.position(start);
+        lineBytes.limit(end);
+        lineChars.clear();
+
+        decoder.reset();
+        decoder.decode(lineBytes, lineChars, true);
+        decoder.flush(lineChars);
+        lineChars.flip();
+        return lineChars;
+    }
+
+    /**
+     * Check if the line is a title line
+     */
+    private static boolean isTitleLine(ByteBuffer bytes, int start, int end) {
+        return end - start > 4
+                && bytes.get(start) == '[' && bytes.get(start + 1) == '['
+                && bytes.get(end - 2) == ']' && bytes.get(end - 1) == ']';
+    }
+
+    /**
+     * Check if the line is a category line
+     */
+    private static boolean isCategoriesLine(ByteBuffer bytes, int start, int end) {
+        if (end - start < CATEGORIES_LINE_START.length) {
+            return false;
+        }
+        for (int i = 0; i < CATEGORIES_LINE_START.length; i++) {
+            if (bytes.get(start + i) != CATEGORIES_LINE_START[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the line is a header line
+     */
+    private static boolean isHeaderLine(ByteBuffer bytes, int start, int end) {
+        return end - start > 2 && bytes.get(start) == '=' && bytes.get(end - 1) == '=';
+    }
+
+    private static int indexOfNewLine(ByteBuffer bytes, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bytes.get(i) == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int lastIndexOfNewLine(ByteBuffer bytes, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (bytes.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
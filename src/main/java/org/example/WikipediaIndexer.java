@@ -1,156 +1,673 @@
 package org.example;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.store.Directory;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Create an index for the Wikipedia documents
  */
 public class WikipediaIndexer {
 
-    private static final String CATEGORIES_LINE_START = "CATEGORIES:";
+    public static final String TITLE_FIELD = "title";
+    // Tokenized copy of the title, the title field is only matched as a whole
+    public static final String TITLE_TEXT_FIELD = "titleText";
+    public static final String SOURCE_FILE_FIELD = "sourceFile";
+    public static final String EMBEDDING_FIELD = "embedding";
+    // Stored leading passage of the page, loaded only for re-ranking
+    public static final String PASSAGE_FIELD = "passage";
+    // Position of the passage in its page, in the passages indexes
+    public static final String PASSAGE_NUMBER_FIELD = "passageNumber";
+
+    // Number of characters of the page that are stored and embedded, BERT only uses the start of a long text anyway
+    private static final int LEADING_PASSAGE_LENGTH = 2000;
+    // Longer sections are split in several passages, so a passage fits in the BERT sequence length
+    private static final int MAX_PASSAGE_LENGTH = 1500;
+    private static final int PAGES_QUEUE_CAPACITY_PER_THREAD = 64;
+
+    // Marks the end of the pages for the indexing workers, compared by reference
+    private static final WikipediaPage END_OF_PAGES = new WikipediaPage("", "", "", "");
 
     private final String wikipediaDatasetDirectoryPath;
-    private final String indexPath;
-    private final TextProcessingOption textProcessingOption;
+    private final Map<TextProcessingOption, String> indexPaths;
+    private final int indexingThreads;
+    private BertEmbeddingService embeddingService;
+    private Path embeddingStorePath;
+    private boolean storeContent = false;
+    private IndexWriterTuning indexWriterTuning = IndexWriterTuning.defaults();
+    private int shards = 1;
+    private boolean indexPassages = false;
 
 
     public WikipediaIndexer(String wikipediaDatasetDirectoryPath, String indexPath, TextProcessingOption textProcessingOption) {
+        this(wikipediaDatasetDirectoryPath, indexPath, textProcessingOption, Runtime.getRuntime().availableProcessors());
+    }
+
+    public WikipediaIndexer(String wikipediaDatasetDirectoryPath, String indexPath, TextProcessingOption textProcessingOption, int indexingThreads) {
+        this(wikipediaDatasetDirectoryPath, Map.of(textProcessingOption, indexPath), indexingThreads);
+    }
+
+    /**
+     * Create an indexer that builds one index for each text processing option in a single pass over the pages
+     * @param indexPaths the path of the index for each text processing option
+     */
+    public WikipediaIndexer(String wikipediaDatasetDirectoryPath, Map<TextProcessingOption, String> indexPaths, int indexingThreads) {
+        if (indexPaths.isEmpty()) {
+            throw new IllegalArgumentException("At least one index must be built");
+        }
+        if (indexingThreads < 1) {
+            throw new IllegalArgumentException("The number of indexing threads must be positive");
+        }
         this.wikipediaDatasetDirectoryPath = wikipediaDatasetDirectoryPath;
-        this.indexPath = indexPath;
-        this.textProcessingOption = textProcessingOption;
+        this.indexPaths = new EnumMap<>(indexPaths);
+        this.indexingThreads = indexingThreads;
     }
 
     /**
-     * Build the index for the Wikipedia documents
+     * Store an embedding of the leading passage of each page, to be searched with a KnnFloatVectorQuery
+     */
+    public void setEmbeddingService(BertEmbeddingService embeddingService) {
+        this.embeddingService = embeddingService;
+    }
+
+    /**
+     * Also write the embeddings to a quantized memory-mapped store, so the re-ranking does not embed the documents.
+     * The embeddings of an existing store are kept, the ones of the indexed pages replace them.
+     */
+    public void setEmbeddingStorePath(Path embeddingStorePath) {
+        this.embeddingStorePath = embeddingStorePath;
+    }
+
+    /**
+     * Identify a passage of a page in the passages indexes and in the embedding stores
+     */
+    public static String getPassageKey(String title, int passageNumber) {
+        return title + "#" + passageNumber;
+    }
+
+    /**
+     * Store the full processed content of each page, by default it is only indexed
+     */
+    public void setStoreContent(boolean storeContent) {
+        this.storeContent = storeContent;
+    }
+
+    /**
+     * Configure the index writers, by default they use the Lucene settings and commit once at the end
+     */
+    public void setIndexWriterTuning(IndexWriterTuning indexWriterTuning) {
+        this.indexWriterTuning = indexWriterTuning;
+    }
+
+    /**
+     * Split each new index in shards by the hash of the page titles, so they can be searched in parallel.
+     * The existing indexes keep the number of shards they were built with.
+     */
+    public void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("The number of shards must be positive");
+        }
+        this.shards = shards;
+    }
+
+    /**
+     * Index a document for each passage of the pages instead of a document for each page.
+     * The pages are split on their section headers, the long sections in passages of limited length.
+     */
+    public void setIndexPassages(boolean indexPassages) {
+        this.indexPassages = indexPassages;
+    }
+
+    /**
+     * Build the indexes for the Wikipedia documents.
+     * The pages are read from the files on the calling thread and handed through a bounded queue
+     * to a pool of workers that apply the text processing and add the documents to the indexes.
+     * Each page is parsed, and lemmatized if needed, once whatever the number of indexes, then each index tokenizes it with its own analyzer.
+     * Existing indexes are updated incrementally: only the new or changed files are indexed again,
+     * their pages replace the ones with the same title and the pages of the deleted files are removed.
+     * With periodic commits a file is only recorded in the manifests once all its pages are added,
+     * so after an interrupted build the files that were not completely committed are indexed again.
+     * The embedding store is checkpointed with each commit, so it keeps the embeddings of the committed files.
      */
     public void buildIndex() {
-        try (IndexWriter indexWriter = new IndexWriter(
-                FSDirectory.open(new File(indexPath).toPath()),
-                new IndexWriterConfig(new StandardAnalyzer())
-            )
-        ) {
-            List<File> wikipediaFiles = getWikipediaFiles(wikipediaDatasetDirectoryPath);
-            for (File wikipediaFile : wikipediaFiles) {
-                System.out.println("Indexing document: " + wikipediaFile.getName());
-                parseWikipediaPage(wikipediaFile, indexWriter);
-            }
-
-            indexWriter.commit();
+        long startTime = System.nanoTime();
+        AtomicLong indexedPages = new AtomicLong();
+        AtomicReference<Throwable> indexingFailure = new AtomicReference<>();
+        List<File> wikipediaFiles = getWikipediaFiles(wikipediaDatasetDirectoryPath);
+
+        // The writers of the shards of each index, a single one for the indexes that are not sharded
+        Map<TextProcessingOption, List<IndexWriter>> indexWriters = new EnumMap<>(TextProcessingOption.class);
+        Set<TextProcessingOption> updatedIndexes = EnumSet.noneOf(TextProcessingOption.class);
+        Map<TextProcessingOption, IndexManifest> manifests = new EnumMap<>(TextProcessingOption.class);
+        List<File> changedFiles = new ArrayList<>();
+        // The fingerprints of the changed files, recorded in the manifests when the files are completely indexed
+        Map<String, String> pendingFingerprints = new HashMap<>();
+        // The number of pages of each file that are not added to the indexes yet
+        Map<String, AtomicInteger> pendingPages = new ConcurrentHashMap<>();
+        System.out.println("Index writer settings: " + indexWriterTuning);
+        QuantizedEmbeddingStore.Writer embeddingStoreWriter = openEmbeddingStoreWriter();
+        try {
+            for (Map.Entry<TextProcessingOption, String> indexPath : indexPaths.entrySet()) {
+                List<IndexWriter> shardWriters = new ArrayList<>();
+                indexWriters.put(indexPath.getKey(), shardWriters);
+                int indexShards = getShardCount(indexPath.getValue());
+                for (int shard = 0; shard < indexShards; shard++) {
+                    String shardPath = indexShards == 1 ? indexPath.getValue() : IndexShards.getShardPath(indexPath.getValue(), shard);
+                    IndexWriter indexWriter = new IndexWriter(
+                            IndexStorage.open(shardPath),
+                            indexWriterTuning.apply(new IndexWriterConfig(Utils.getIndexAnalyzer(indexPath.getKey())))
+                    );
+                    shardWriters.add(indexWriter);
+                    if (indexWriter.getDocStats().numDocs > 0) {
+                        updatedIndexes.add(indexPath.getKey());
+                    }
+                }
+                // The same manifest is written to all the shards
+                manifests.put(indexPath.getKey(), IndexManifest.read(shardWriters.get(0)));
+            }
+            if (embeddingStoreWriter != null) {
+                embeddingStoreWriter.start(getEmbeddingStoreCheckpoint(manifests));
+            }
+
+            changedFiles.addAll(findChangedFiles(wikipediaFiles, indexWriters, updatedIndexes, manifests, pendingFingerprints));
+            System.out.println("Files to index: " + changedFiles.size() + " of " + wikipediaFiles.size());
+
+            BlockingQueue<WikipediaPage> pages = new ArrayBlockingQueue<>(indexingThreads * PAGES_QUEUE_CAPACITY_PER_THREAD);
+            ExecutorService indexingWorkers = Executors.newFixedThreadPool(indexingThreads);
+            try {
+                for (int i = 0; i < indexingThreads; i++) {
+                    indexingWorkers.execute(() -> indexPages(pages, indexWriters, updatedIndexes, embeddingStoreWriter, indexedPages, pendingPages,
+                            indexingFailure));
+                }
+
+                try {
+                    WikipediaFileParser wikipediaFileParser = new WikipediaFileParser();
+                    List<String> parsedFiles = new ArrayList<>();
+                    for (File wikipediaFile : changedFiles) {
+                        if (indexingFailure.get() != null) {
+                            break;
+                        }
+                        System.out.println("Indexing document: " + wikipediaFile.getName());
+                        AtomicInteger filePendingPages = pendingPages.computeIfAbsent(wikipediaFile.getName(), fileName -> new AtomicInteger());
+                        // Includes the time blocked on a full queue, when the workers are the bottleneck
+                        long parseStart = System.nanoTime();
+                        wikipediaFileParser.parse(wikipediaFile, page -> {
+                            filePendingPages.incrementAndGet();
+                            putPage(pages, page);
+                        });
+                        Metrics.timer("index.parseFile").recordSince(parseStart);
+                        Metrics.increment("index.files");
+
+                        parsedFiles.add(wikipediaFile.getName());
+                        int commitIntervalFiles = indexWriterTuning.getCommitIntervalFiles();
+                        if (commitIntervalFiles > 0 && parsedFiles.size() % commitIntervalFiles == 0 && indexingFailure.get() == null) {
+                            commitCompletedFiles(indexWriters, manifests, embeddingStoreWriter, parsedFiles, pendingFingerprints, pendingPages);
+                        }
+                    }
+                } finally {
+                    for (int i = 0; i < indexingThreads; i++) {
+                        putPage(pages, END_OF_PAGES);
+                    }
+                }
+            } finally {
+                indexingWorkers.shutdown();
+                awaitTermination(indexingWorkers);
+            }
+
+            if (indexingFailure.get() != null) {
+                throw new RuntimeException(indexingFailure.get());
+            }
+
+            for (IndexManifest manifest : manifests.values()) {
+                pendingFingerprints.forEach(manifest::putFingerprint);
+            }
+            commit(indexWriters, manifests, embeddingStoreWriter);
+            forceMerge(indexWriters);
+            if (embeddingStoreWriter != null) {
+                embeddingStoreWriter.finish();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            closeIndexWriters(indexWriters);
+            if (embeddingStoreWriter != null) {
+                embeddingStoreWriter.abort();
+            }
         }
 
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+        System.out.println("Indexed " + indexedPages.get() + " pages from " + changedFiles.size() + " files"
+                + " into " + indexWriters.keySet()
+                + " using " + indexingThreads + " threads in " + String.format("%.2f", elapsedSeconds) + " s"
+                + " (" + String.format("%.2f", indexedPages.get() / Math.max(elapsedSeconds, 1e-9)) + " pages/s)");
     }
 
     /**
-     * Parse a Wikipedia page based on its structure
+     * Commit the indexes, the manifests record the files whose pages are all added.
+     * The pages of the other files are committed too, they are replaced when these files are indexed again.
      */
-    private void parseWikipediaPage(File wikipediaFile, IndexWriter indexWriter) {
-        String documentTitle = "";
-        String documentCategories = "";
-        List<String> documentContent = new ArrayList<>();
+    private void commitCompletedFiles(Map<TextProcessingOption, List<IndexWriter>> indexWriters, Map<TextProcessingOption, IndexManifest> manifests,
+                                      QuantizedEmbeddingStore.Writer embeddingStoreWriter, List<String> parsedFiles, Map<String, String> pendingFingerprints,
+                                      Map<String, AtomicInteger> pendingPages) throws IOException {
+        List<String> completedFiles = new ArrayList<>();
+        for (String parsedFile : parsedFiles) {
+            if (pendingFingerprints.containsKey(parsedFile) && pendingPages.get(parsedFile).get() == 0) {
+                completedFiles.add(parsedFile);
+            }
+        }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(wikipediaFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
+        for (String completedFile : completedFiles) {
+            String fingerprint = pendingFingerprints.remove(completedFile);
+            for (IndexManifest manifest : manifests.values()) {
+                manifest.putFingerprint(completedFile, fingerprint);
+            }
+        }
+        commit(indexWriters, manifests, embeddingStoreWriter);
+        System.out.println("Committed " + completedFiles.size() + " completely indexed files, "
+                + pendingFingerprints.size() + " files left");
+    }
 
-                if (isTitleLine(line)) {
+    /**
+     * Commit the indexes with the manifests. The embeddings of the files recorded in the manifests are all added,
+     * so the embedding store checkpoint taken first has them too.
+     */
+    private void commit(Map<TextProcessingOption, List<IndexWriter>> indexWriters, Map<TextProcessingOption, IndexManifest> manifests,
+                        QuantizedEmbeddingStore.Writer embeddingStoreWriter) throws IOException {
+        if (embeddingStoreWriter != null) {
+            String checkpoint = embeddingStoreWriter.checkpoint();
+            for (IndexManifest manifest : manifests.values()) {
+                manifest.setEmbeddingStoreCheckpoint(checkpoint);
+            }
+        }
+        for (Map.Entry<TextProcessingOption, List<IndexWriter>> shardWriters : indexWriters.entrySet()) {
+            for (IndexWriter indexWriter : shardWriters.getValue()) {
+                manifests.get(shardWriters.getKey()).write(indexWriter);
+                long commitStart = System.nanoTime();
+                indexWriter.commit();
+                Metrics.timer("index.commit").recordSince(commitStart);
+            }
+        }
+    }
 
-                    if (!"".equals(documentTitle)) {
-                        addDocumentToIndex(indexWriter, documentTitle, documentCategories.trim(), concatenateDocumentContent(documentContent));
-                    }
+    /**
+     * Merge the segments of the indexes down to the configured number, so fewer segments are searched
+     */
+    private void forceMerge(Map<TextProcessingOption, List<IndexWriter>> indexWriters) throws IOException {
+        int forceMergeSegments = indexWriterTuning.getForceMergeSegments();
+        if (forceMergeSegments == 0) {
+            return;
+        }
+
+        for (Map.Entry<TextProcessingOption, List<IndexWriter>> shardWriters : indexWriters.entrySet()) {
+            System.out.println("Merging " + shardWriters.getKey() + " index down to " + forceMergeSegments + " segments per shard");
+            for (IndexWriter indexWriter : shardWriters.getValue()) {
+                long mergeStart = System.nanoTime();
+                indexWriter.forceMerge(forceMergeSegments);
+                indexWriter.commit();
+                Metrics.timer("index.forceMerge").recordSince(mergeStart);
+            }
+        }
+    }
 
-                    documentTitle = line.substring(2, line.length() - 2);
-                    documentContent = new ArrayList<>();
+    /**
+     * Find the new and changed files, their fingerprints are kept apart until they are indexed.
+     * The documents of the changed and deleted files are removed from the indexes before the new pages are added,
+     * including the pages of a file that was only partly committed by an interrupted build.
+     */
+    private List<File> findChangedFiles(List<File> wikipediaFiles, Map<TextProcessingOption, List<IndexWriter>> indexWriters,
+                                        Set<TextProcessingOption> updatedIndexes, Map<TextProcessingOption, IndexManifest> manifests,
+                                        Map<String, String> pendingFingerprints) throws IOException {
+        List<File> changedFiles = new ArrayList<>();
+        Set<String> currentFiles = new HashSet<>();
+
+        for (File wikipediaFile : wikipediaFiles) {
+            String fileName = wikipediaFile.getName();
+            currentFiles.add(fileName);
 
-                } else if (isCategoriesLine(line)) {
-                    documentCategories = line.substring(CATEGORIES_LINE_START.length() + 1);
-                } else if (isHeaderLine(line)) {
-                    line = line.replace("=", "");
-                    documentContent.add(line);
-                } else {
-                    documentContent.add(line);
+            String previousFingerprint = null;
+            for (IndexManifest manifest : manifests.values()) {
+                if (manifest.getFingerprint(fileName) != null) {
+                    previousFingerprint = manifest.getFingerprint(fileName);
+                    break;
                 }
             }
+            String fingerprint = IndexManifest.fingerprint(wikipediaFile, previousFingerprint);
 
-            addDocumentToIndex(indexWriter, documentTitle, documentCategories.trim(), concatenateDocumentContent(documentContent));
+            boolean isChanged = false;
+            for (Map.Entry<TextProcessingOption, IndexManifest> manifest : manifests.entrySet()) {
+                String indexedFingerprint = manifest.getValue().getFingerprint(fileName);
+                if (IndexManifest.isChanged(indexedFingerprint, fingerprint)) {
+                    isChanged = true;
+                    if (updatedIndexes.contains(manifest.getKey())) {
+                        deleteDocuments(indexWriters.get(manifest.getKey()), new Term(SOURCE_FILE_FIELD, fileName));
+                    }
+                }
+            }
 
+            if (isChanged) {
+                changedFiles.add(wikipediaFile);
+                pendingFingerprints.put(fileName, fingerprint);
+                for (IndexManifest manifest : manifests.values()) {
+                    manifest.getFingerprints().remove(fileName);
+                }
+            } else {
+                for (IndexManifest manifest : manifests.values()) {
+                    manifest.putFingerprint(fileName, fingerprint);
+                }
+            }
+        }
 
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        for (Map.Entry<TextProcessingOption, IndexManifest> manifest : manifests.entrySet()) {
+            Set<String> deletedFiles = new HashSet<>(manifest.getValue().getFingerprints().keySet());
+            deletedFiles.removeAll(currentFiles);
+            for (String deletedFile : deletedFiles) {
+                System.out.println("Removing deleted document: " + deletedFile);
+                deleteDocuments(indexWriters.get(manifest.getKey()), new Term(SOURCE_FILE_FIELD, deletedFile));
+                manifest.getValue().getFingerprints().remove(deletedFile);
+            }
+        }
+
+        return changedFiles;
+    }
+
+    private static void deleteDocuments(List<IndexWriter> shardWriters, Term term) throws IOException {
+        for (IndexWriter indexWriter : shardWriters) {
+            indexWriter.deleteDocuments(term);
         }
     }
 
     /**
-     * Create new Wikipedia document
+     * Get the number of shards of the index, the existing indexes keep their layout
      */
-    private void addDocumentToIndex(IndexWriter indexWriter, String docTitle, String docCategories, String docContent) throws IOException {
-        Document document = new Document();
-        document.add(new StringField("title", docTitle, Field.Store.YES));
-        document.add(new TextField("categories", docCategories, Field.Store.YES));
+    private int getShardCount(String indexPath) throws IOException {
+        int existingShards = IndexShards.countShards(indexPath);
+        if (existingShards == 0) {
+            try (Directory directory = IndexStorage.open(indexPath)) {
+                existingShards = DirectoryReader.indexExists(directory) ? 1 : 0;
+            }
+        }
 
-        String all = docTitle + " " + String.join(" ", docCategories) + " " + docContent;
-        document.add(new TextField("content", Utils.applyTextProcessing(all, textProcessingOption), Field.Store.YES));
+        if (existingShards == 0) {
+            return shards;
+        }
+        if (existingShards != shards) {
+            System.out.println("The index " + indexPath + " is kept with its " + existingShards + " shards");
+        }
+        return existingShards;
+    }
 
-        indexWriter.addDocument(document);
+    /**
+     * Create the writer of the embedding store, or return null if the embeddings are not computed or not stored
+     */
+    private QuantizedEmbeddingStore.Writer openEmbeddingStoreWriter() {
+        if (embeddingService == null || embeddingStorePath == null) {
+            return null;
+        }
+        return new QuantizedEmbeddingStore.Writer(embeddingStorePath, true);
     }
 
-    private List<File> getWikipediaFiles(String wikipediaDatasetDirectoryPath) {
-        List<File> wikipediaFiles = new ArrayList<>();
-        File wikipediaDirectory = new File(wikipediaDatasetDirectoryPath);
+    /**
+     * Return the embedding store checkpoint of the last commit, or null if the indexes were not committed with the same one
+     */
+    private static String getEmbeddingStoreCheckpoint(Map<TextProcessingOption, IndexManifest> manifests) {
+        Set<String> checkpoints = new HashSet<>();
+        for (IndexManifest manifest : manifests.values()) {
+            checkpoints.add(manifest.getEmbeddingStoreCheckpoint());
+        }
+        return checkpoints.size() == 1 ? checkpoints.iterator().next() : null;
+    }
 
-        if (wikipediaDirectory.isDirectory()) {
-            File[] files = wikipediaDirectory.listFiles();
-            if (files == null) {
-                return wikipediaFiles;
+    private void closeIndexWriters(Map<TextProcessingOption, List<IndexWriter>> indexWriters) {
+        for (List<IndexWriter> shardWriters : indexWriters.values()) {
+            for (IndexWriter indexWriter : shardWriters) {
+                try (Directory directory = indexWriter.getDirectory()) {
+                    indexWriter.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
+        }
+    }
 
-            for (File file : files) {
-                if (file.isFile()) {
-                    wikipediaFiles.add(file);
+    /**
+     * Take pages from the queue and add them to the index until the end of the pages.
+     * After a failure the worker keeps draining the queue, so the reader never blocks on a full queue.
+     */
+    private void indexPages(BlockingQueue<WikipediaPage> pages, Map<TextProcessingOption, List<IndexWriter>> indexWriters,
+                            Set<TextProcessingOption> updatedIndexes, QuantizedEmbeddingStore.Writer embeddingStoreWriter,
+                            AtomicLong indexedPages, Map<String, AtomicInteger> pendingPages, AtomicReference<Throwable> indexingFailure) {
+        try {
+            WikipediaPage page;
+            while ((page = pages.take()) != END_OF_PAGES) {
+                if (indexingFailure.get() != null) {
+                    continue;
+                }
+
+                try {
+                    if (indexPassages) {
+                        addPassagesToIndex(indexWriters, updatedIndexes, embeddingStoreWriter, page);
+                    } else {
+                        addDocumentToIndex(indexWriters, updatedIndexes, embeddingStoreWriter, page);
+                    }
+                    indexedPages.incrementAndGet();
+                    pendingPages.get(page.sourceFile()).decrementAndGet();
+                    Metrics.increment("index.pages");
+                } catch (Throwable e) {
+                    indexingFailure.compareAndSet(null, e);
                 }
             }
+        } catch (InterruptedException e) {
+            indexingFailure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
         }
+    }
 
-        return wikipediaFiles;
+    private void putPage(BlockingQueue<WikipediaPage> pages, WikipediaPage page) {
+        try {
+            pages.put(page);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void awaitTermination(ExecutorService executorService) {
+        try {
+            while (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for the indexing workers to finish...");
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * Check if the line is a title line
+     * Create new Wikipedia document in each index, the content is analyzed by the analyzer of each index.
+     * In the indexes that are updated the document replaces the one with the same title.
+     * In a sharded index the document is written to the shard of its title.
      */
-    private boolean isTitleLine(String line) {
-        return line.startsWith("[[") && line.endsWith("]]") && line.length() > 4;
+    private void addDocumentToIndex(Map<TextProcessingOption, List<IndexWriter>> indexWriters, Set<TextProcessingOption> updatedIndexes,
+                                    QuantizedEmbeddingStore.Writer embeddingStoreWriter, WikipediaPage page) throws IOException {
+        String all = new StringBuilder(page.title().length() + page.categories().length() + page.content().length() + 2)
+                .append(page.title()).append(' ')
+                .append(page.categories()).append(' ')
+                .append(page.content())
+                .toString();
+        long processingStart = System.nanoTime();
+        Map<TextProcessingOption, String> processedContents = Utils.applyTextProcessing(all, indexWriters.keySet());
+        Metrics.timer("index.textProcessing").recordSince(processingStart);
+        String leadingPassage = getLeadingPassage(all);
+        float[] embedding = embeddingService == null ? null : embeddingService.embed(leadingPassage);
+        if (embeddingStoreWriter != null) {
+            embeddingStoreWriter.add(page.title(), embedding);
+        }
+
+        for (Map.Entry<TextProcessingOption, List<IndexWriter>> shardWriters : indexWriters.entrySet()) {
+            IndexWriter indexWriter = shardWriters.getValue().get(IndexShards.getShardOf(page.title(), shardWriters.getValue().size()));
+            Document document = new Document();
+            document.add(new StringField(TITLE_FIELD, page.title(), Field.Store.YES));
+            document.add(new TextField(TITLE_TEXT_FIELD, page.title(), Field.Store.NO));
+            document.add(new StringField(SOURCE_FILE_FIELD, page.sourceFile(), Field.Store.NO));
+            document.add(new TextField("categories", page.categories(), Field.Store.YES));
+            document.add(new TextField("content", processedContents.get(shardWriters.getKey()), storeContent ? Field.Store.YES : Field.Store.NO));
+            document.add(new StoredField(PASSAGE_FIELD, leadingPassage));
+            if (embedding != null) {
+                document.add(new KnnFloatVectorField(EMBEDDING_FIELD, embedding, VectorSimilarityFunction.COSINE));
+            }
+
+            // The analysis of the fields by the index analyzer happens here
+            long addStart = System.nanoTime();
+            if (updatedIndexes.contains(shardWriters.getKey())) {
+                indexWriter.updateDocument(new Term(TITLE_FIELD, page.title()), document);
+            } else {
+                indexWriter.addDocument(document);
+            }
+            Metrics.timer("index.addDocument." + shardWriters.getKey()).recordSince(addStart);
+        }
     }
 
     /**
-     * Check if the line is a category line
+     * Create a document for each passage of the page, with the page title, in each index.
+     * In the indexes that are updated the passages replace all the passages of the page.
      */
-    private boolean isCategoriesLine(String line) {
-        return line.startsWith(CATEGORIES_LINE_START);
+    private void addPassagesToIndex(Map<TextProcessingOption, List<IndexWriter>> indexWriters, Set<TextProcessingOption> updatedIndexes,
+                                    QuantizedEmbeddingStore.Writer embeddingStoreWriter, WikipediaPage page) throws IOException {
+        List<String> passages = splitPassages(page);
+        Map<TextProcessingOption, List<Document>> documents = new EnumMap<>(TextProcessingOption.class);
+        for (TextProcessingOption textProcessingOption : indexWriters.keySet()) {
+            documents.put(textProcessingOption, new ArrayList<>(passages.size()));
+        }
+
+        for (int i = 0; i < passages.size(); i++) {
+            String passage = page.title() + ' ' + passages.get(i);
+            long processingStart = System.nanoTime();
+            Map<TextProcessingOption, String> processedContents = Utils.applyTextProcessing(
+                    page.title() + ' ' + page.categories() + ' ' + passages.get(i), indexWriters.keySet());
+            Metrics.timer("index.textProcessing").recordSince(processingStart);
+            float[] embedding = embeddingService == null ? null : embeddingService.embed(passage);
+            if (embeddingStoreWriter != null) {
+                embeddingStoreWriter.add(getPassageKey(page.title(), i), embedding);
+            }
+
+            for (Map.Entry<TextProcessingOption, List<Document>> indexDocuments : documents.entrySet()) {
+                Document document = new Document();
+                document.add(new StringField(TITLE_FIELD, page.title(), Field.Store.YES));
+                document.add(new TextField(TITLE_TEXT_FIELD, page.title(), Field.Store.NO));
+                document.add(new StringField(SOURCE_FILE_FIELD, page.sourceFile(), Field.Store.NO));
+                document.add(new StoredField(PASSAGE_NUMBER_FIELD, i));
+                document.add(new TextField("content", processedContents.get(indexDocuments.getKey()), Field.Store.NO));
+                document.add(new StoredField(PASSAGE_FIELD, passage));
+                if (embedding != null) {
+                    document.add(new KnnFloatVectorField(EMBEDDING_FIELD, embedding, VectorSimilarityFunction.COSINE));
+                }
+                indexDocuments.getValue().add(document);
+            }
+        }
+
+        for (Map.Entry<TextProcessingOption, List<IndexWriter>> shardWriters : indexWriters.entrySet()) {
+            IndexWriter indexWriter = shardWriters.getValue().get(IndexShards.getShardOf(page.title(), shardWriters.getValue().size()));
+            long addStart = System.nanoTime();
+            if (updatedIndexes.contains(shardWriters.getKey())) {
+                indexWriter.updateDocuments(new Term(TITLE_FIELD, page.title()), documents.get(shardWriters.getKey()));
+            } else {
+                indexWriter.addDocuments(documents.get(shardWriters.getKey()));
+            }
+            Metrics.timer("index.addDocument." + shardWriters.getKey()).recordSince(addStart);
+        }
+        Metrics.add("index.passages", passages.size());
     }
 
     /**
-     * Check if the line is a header line
+     * Split the page content on the sections headers, the sections longer than the maximum length
+     * are split again on the last whitespace before the limit
      */
-    private boolean isHeaderLine(String line) {
-        return line.startsWith("=") && line.endsWith("=") && line.length() > 2;
+    private static List<String> splitPassages(WikipediaPage page) {
+        List<String> passages = new ArrayList<>();
+        String content = page.content();
+        int[] sectionStarts = page.sectionStarts();
+
+        for (int section = 0; section <= sectionStarts.length; section++) {
+            int sectionStart = section == 0 ? 0 : sectionStarts[section - 1];
+            int sectionEnd = section == sectionStarts.length ? content.length() : sectionStarts[section];
+
+            int passageStart = sectionStart;
+            while (passageStart < sectionEnd) {
+                int passageEnd = sectionEnd;
+                if (passageEnd - passageStart > MAX_PASSAGE_LENGTH) {
+                    passageEnd = content.lastIndexOf(' ', passageStart + MAX_PASSAGE_LENGTH);
+                    if (passageEnd <= passageStart) {
+                        passageEnd = passageStart + MAX_PASSAGE_LENGTH;
+                    }
+                }
+
+                String passage = content.substring(passageStart, passageEnd).trim();
+                if (!passage.isEmpty()) {
+                    passages.add(passage);
+                }
+                passageStart = passageEnd;
+            }
+        }
+
+        // A page without content is still found by its title
+        if (passages.isEmpty()) {
+            passages.add("");
+        }
+        return passages;
+    }
+
+    private String getLeadingPassage(String text) {
+        return text.length() <= LEADING_PASSAGE_LENGTH ? text : text.substring(0, LEADING_PASSAGE_LENGTH);
     }
 
-    private String concatenateDocumentContent(List<String> content) {
-        return String.join(" ", content);
+    private List<File> getWikipediaFiles(String wikipediaDatasetDirectoryPath) {
+        List<File> wikipediaFiles = new ArrayList<>();
+        File wikipediaDirectory = new File(wikipediaDatasetDirectoryPath);
+
+        if (wikipediaDirectory.isDirectory()) {
+            File[] files = wikipediaDirectory.listFiles();
+            if (files == null) {
+                return wikipediaFiles;
+            }
+
+            for (File file : files) {
+                if (file.isFile()) {
+                    wikipediaFiles.add(file);
+                }
+            }
+        }
+
+        return wikipediaFiles;
     }
 }
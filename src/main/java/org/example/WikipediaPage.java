@@ -0,0 +1,16 @@
+package org.example;
+
+/**
+ * Hold the raw information of a Wikipedia page, before any text processing
+ * @param title the page title
+ * @param categories the page categories
+ * @param content the page content, with the headers markup removed
+ * @param sourceFile the name of the Wikipedia file that contains the page
+ * @param sectionStarts the offsets in the content where a section starts with its header, in increasing order
+ */
+public record WikipediaPage(String title, String categories, String content, String sourceFile, int[] sectionStarts) {
+
+    public WikipediaPage(String title, String categories, String content, String sourceFile) {
+        this(title, categories, content, sourceFile, new int[0]);
+    }
+}